@@ -0,0 +1,477 @@
+package webtoy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load generator driving a server over loopback with persistent connections.
+ *
+ * Closed loop (rate 0): every connection keeps pipeline requests in flight and sends the next
+ * one as soon as a response arrives, so throughput is as high as server allows.
+ *
+ * Open loop (rate > 0): requests are sent on a fixed schedule spread over all connections,
+ * no matter how fast server answers. Latency is measured from the time a request should
+ * have been sent, so requests delayed behind a slow response are charged the delay too,
+ * correcting coordinated omission. Latency from the time requests were actually sent is
+ * reported beside it, the gap between both shows how much a closed loop would hide.
+ *
+ * Server could be started in this JVM in a given mode, for comparing modes side by side:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar webtoy.LoadGenerator \
+ *       --embedded=4:virtual --connections=64 --pipeline=4 --rate=50000 --duration=30
+ *
+ * Options, all with "--name=value":
+ *
+ *   host, port       server to drive, default 127.0.0.1:9009
+ *   connections      persistent connections, default 16
+ *   threads          selector threads of generator, default 2
+ *   pipeline         requests in flight on a connection, default 1
+ *   rate             requests per second of all connections, 0 for closed loop, default 0
+ *   duration         seconds measured, default 10
+ *   warmup           seconds before measuring, default 2
+ *   paths            request mix as path[*weight],... default /hello
+ *   embedded         start a server here as reactors:mode, mode is reactor, pool or virtual
+ */
+public class LoadGenerator {
+    private static final byte[] ContentLength = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TransferEncoding = "transfer-encoding:".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress address;
+    private final Integer connections;
+    private final Integer threads;
+    private final Integer pipeline;
+    private final long rate;
+    private final long duration;
+    private final long warmup;
+    private final byte[][] requests;
+    private final Integer[] weights;
+
+    /**
+     * Results of a generator thread, merged once all threads finished.
+     */
+    private static class Result {
+        final Histogram corrected = new Histogram();
+        final Histogram uncorrected = new Histogram();
+        final Map<Integer, Long> codes = new TreeMap<>();
+        long responses;
+        long errors;
+    }
+
+    /**
+     * Waiting for header of next response, for rest of a body with Content-Length,
+     * or for size line, data, ending CRLF or trailers of a chunked body.
+     */
+    private enum State {
+        HEADER,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK,
+        CHUNK_END,
+        TRAILER
+    }
+
+    /**
+     * A connection of generator, requests in flight are kept in a ring of their times.
+     *
+     * Bodies are skipped as they arrive instead of being buffered, so inbound buffer only
+     * has to hold a header or a line of chunked framing, and grows if one does not fit.
+     */
+    private class Client {
+        final SocketChannel channel;
+        ByteBuffer inbound = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer outbound = ByteBuffer.allocate(16 * 1024);
+        final long[] intended;
+        final long[] sent;
+        int head = 0;
+        int inflight = 0;
+        long next;
+        final long interval;
+
+        // Parsing progress of the response at head of inbound buffer
+        State state = State.HEADER;
+        int code;
+        long remaining;
+
+        Client(SocketChannel channel, long start, long interval) {
+            this.channel = channel;
+            this.intended = new long[pipeline];
+            this.sent = new long[pipeline];
+            this.next = start;
+            this.interval = interval;
+        }
+
+        /**
+         * Queue requests whose time has come while pipeline has room.
+         */
+        void send(long now) {
+            while (this.inflight < pipeline) {
+                long intended = now;
+                if (this.interval > 0) {
+                    if (this.next > now)
+                        break;
+                    intended = this.next;
+                    this.next += this.interval;
+                }
+                byte[] request = pick();
+                if (this.outbound.remaining() < request.length) {
+                    ByteBuffer larger = ByteBuffer.allocate(this.outbound.capacity() * 2 + request.length);
+                    this.outbound = larger.put(this.outbound.flip());
+                }
+                this.outbound.put(request);
+                int slot = (this.head + this.inflight) % pipeline;
+                this.intended[slot] = intended;
+                this.sent[slot] = now;
+                this.inflight++;
+            }
+        }
+
+        /**
+         * Write queued requests, what socket did not take waits for OP_WRITE.
+         * @return true if nothing left
+         */
+        Boolean flush() throws IOException {
+            this.outbound.flip();
+            this.channel.write(this.outbound);
+            Boolean drained = !this.outbound.hasRemaining();
+            this.outbound.compact();
+            return drained;
+        }
+
+        /**
+         * Parse responses in inbound buffer, and record every response once its body ended.
+         */
+        void receive(Result result, long now, long measureFrom) throws IOException {
+            if (this.channel.read(this.inbound) == -1)
+                throw new IOException("server closed connection");
+            ByteBuffer data = this.inbound;
+            int start = 0;
+            while (true) {
+                if (this.state == State.HEADER) {
+                    int end = headerEnd(data, start);
+                    if (end == -1)
+                        break;
+                    this.code = (data.get(start + 9) - '0') * 100 + (data.get(start + 10) - '0') * 10
+                            + (data.get(start + 11) - '0');
+                    String encoding = header(data, start, end, TransferEncoding);
+                    Boolean chunked = encoding != null && encoding.toLowerCase(Locale.ROOT).contains("chunked");
+                    String length = header(data, start, end, ContentLength);
+                    this.remaining = chunked || length == null ? 0 : Long.parseLong(length);
+                    this.state = chunked ? State.CHUNK_SIZE : State.BODY;
+                    start = end;
+                } else if (this.state == State.BODY || this.state == State.CHUNK) {
+                    int count = (int) Math.min(this.remaining, data.position() - start);
+                    start += count;
+                    this.remaining -= count;
+                    if (this.remaining > 0)
+                        break;
+                    if (this.state == State.CHUNK) {
+                        this.state = State.CHUNK_END;
+                        continue;
+                    }
+                    this.record(result, now, measureFrom);
+                    this.state = State.HEADER;
+                } else {
+                    int end = lineEnd(data, start);
+                    if (end == -1)
+                        break;
+                    if (this.state == State.CHUNK_SIZE) {
+                        this.remaining = chunkSize(data, start, end);
+                        this.state = this.remaining == 0 ? State.TRAILER : State.CHUNK;
+                    } else if (this.state == State.CHUNK_END) {
+                        this.state = State.CHUNK_SIZE;
+                    } else if (end - start == 2) {
+                        // Empty line after last chunk and its trailers ends body
+                        this.record(result, now, measureFrom);
+                        this.state = State.HEADER;
+                    }
+                    start = end;
+                }
+            }
+            data.flip().position(start);
+            data.compact();
+            if (!data.hasRemaining())
+                this.inbound = ByteBuffer.allocate(data.capacity() * 2).put(data.flip());
+        }
+
+        /**
+         * Record response of the earliest request in flight.
+         */
+        private void record(Result result, long now, long measureFrom) {
+            long intended = this.intended[this.head];
+            long sent = this.sent[this.head];
+            this.head = (this.head + 1) % pipeline;
+            this.inflight--;
+            if (intended >= measureFrom) {
+                result.corrected.record(now - intended);
+                result.uncorrected.record(now - sent);
+                result.responses++;
+                result.codes.merge(this.code, 1L, Long::sum);
+            }
+        }
+    }
+
+    /**
+     * Index after double CRLF of a response starting at given index, -1 if not arrived yet.
+     */
+    private static int headerEnd(ByteBuffer data, int start) {
+        for (int index = start; index + 3 < data.position(); index++)
+            if (data.get(index) == '\r' && data.get(index + 1) == '\n'
+                    && data.get(index + 2) == '\r' && data.get(index + 3) == '\n')
+                return index + 4;
+        return -1;
+    }
+
+    /**
+     * Index after CRLF of a line starting at given index, -1 if not arrived yet.
+     */
+    private static int lineEnd(ByteBuffer data, int start) {
+        for (int index = start; index + 1 < data.position(); index++)
+            if (data.get(index) == '\r' && data.get(index + 1) == '\n')
+                return index + 2;
+        return -1;
+    }
+
+    /**
+     * Value of a header between start and end, null if not found.
+     * @param name lower case name with its colon
+     */
+    private static String header(ByteBuffer data, int start, int end, byte[] name) {
+        for (int index = start; index + name.length < end; index++) {
+            if (data.get(index) != '\n')
+                continue;
+            int offset = 0;
+            while (offset < name.length && Character.toLowerCase(data.get(index + 1 + offset)) == name[offset])
+                offset++;
+            if (offset < name.length)
+                continue;
+            StringBuilder value = new StringBuilder();
+            for (int cursor = index + 1 + offset; cursor < end && data.get(cursor) != '\r'; cursor++)
+                value.append((char) data.get(cursor));
+            return value.toString().strip();
+        }
+        return null;
+    }
+
+    /**
+     * Size of a chunk from its size line between start and end, extensions are ignored.
+     */
+    private static long chunkSize(ByteBuffer data, int start, int end) {
+        long size = 0;
+        for (int cursor = start; cursor < end - 2; cursor++) {
+            int digit = Character.digit(data.get(cursor), 16);
+            if (digit == -1)
+                break;
+            size = size * 16 + digit;
+        }
+        return size;
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        this.address = new InetSocketAddress(options.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(options.getOrDefault("port", "9009")));
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        this.threads = Math.min(Integer.parseInt(options.getOrDefault("threads", "2")), this.connections);
+        this.pipeline = Integer.parseInt(options.getOrDefault("pipeline", "1"));
+        this.rate = Long.parseLong(options.getOrDefault("rate", "0"));
+        this.duration = Long.parseLong(options.getOrDefault("duration", "10")) * 1_000_000_000L;
+        this.warmup = Long.parseLong(options.getOrDefault("warmup", "2")) * 1_000_000_000L;
+
+        String[] paths = options.getOrDefault("paths", "/hello").split(",");
+        this.requests = new byte[paths.length][];
+        this.weights = new Integer[paths.length];
+        for (Integer index = 0; index < paths.length; index++) {
+            String[] parts = paths[index].split("\\*", 2);
+            this.requests[index] = String.format("GET %s HTTP/1.1\r\nHost: %s\r\n\r\n", parts[0],
+                    this.address.getHostString()).getBytes(StandardCharsets.US_ASCII);
+            this.weights[index] = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        }
+    }
+
+    /**
+     * Choose a request of mix by weights.
+     */
+    private byte[] pick() {
+        if (this.requests.length == 1)
+            return this.requests[0];
+        Integer total = 0;
+        for (Integer weight : this.weights)
+            total += weight;
+        Integer chosen = ThreadLocalRandom.current().nextInt(total);
+        for (Integer index = 0; index < this.weights.length; index++) {
+            chosen -= this.weights[index];
+            if (chosen < 0)
+                return this.requests[index];
+        }
+        return this.requests[0];
+    }
+
+    /**
+     * Drive server with a share of connections on current thread until duration passed.
+     */
+    private Result drive(Integer count, long start) throws IOException {
+        Result result = new Result();
+        long interval = this.rate > 0 ? 1_000_000_000L * this.connections / this.rate : 0;
+        long measureFrom = start + this.warmup;
+        long end = measureFrom + this.duration;
+        try (Selector selector = Selector.open()) {
+            List<Client> clients = new ArrayList<>();
+            for (Integer index = 0; index < count; index++) {
+                SocketChannel channel = SocketChannel.open(this.address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                // Spread schedules of connections evenly over an interval
+                Client client = new Client(channel, start + interval * index / Math.max(count, 1), interval);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end)
+                    break;
+                long wake = end;
+                for (Client client : clients) {
+                    client.send(now);
+                    if (client.outbound.position() > 0) {
+                        Boolean drained = client.flush();
+                        client.channel.keyFor(selector).interestOps(
+                                SelectionKey.OP_READ | (drained ? 0 : SelectionKey.OP_WRITE));
+                    }
+                    if (client.interval > 0 && client.inflight < this.pipeline)
+                        wake = Math.min(wake, client.next);
+                }
+                long timeout = Math.max((wake - now) / 1_000_000, 0);
+                if (timeout == 0)
+                    selector.selectNow();
+                else
+                    selector.select(timeout);
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            client.receive(result, now, measureFrom);
+                        if (key.isValid() && key.isWritable() && client.flush())
+                            key.interestOps(SelectionKey.OP_READ);
+                    } catch (IOException error) {
+                        result.errors++;
+                        key.cancel();
+                        client.channel.close();
+                        clients.remove(client);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (Client client : clients)
+                client.channel.close();
+        }
+        return result;
+    }
+
+    /**
+     * Run all generator threads and merge their results.
+     */
+    Result run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        long start = System.nanoTime() + 100_000_000L;
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Integer index = 0; index < this.threads; index++) {
+            Integer count = this.connections / this.threads + (index < this.connections % this.threads ? 1 : 0);
+            futures.add(pool.submit(() -> this.drive(count, start)));
+        }
+        Result merged = new Result();
+        for (Future<Result> future : futures) {
+            Result result = future.get();
+            result.corrected.addTo(merged.corrected);
+            result.uncorrected.addTo(merged.uncorrected);
+            result.codes.forEach((code, count) -> merged.codes.merge(code, count, Long::sum));
+            merged.responses += result.responses;
+            merged.errors += result.errors;
+        }
+        pool.shutdown();
+        return merged;
+    }
+
+    void report(Result result) {
+        double seconds = this.duration / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s loop, %d connections, pipeline %d, %s",
+                this.rate > 0 ? "open" : "closed", this.connections, this.pipeline,
+                this.rate > 0 ? this.rate + " req/s target" : "no rate limit"));
+        System.out.println(String.format(Locale.ROOT, "throughput  %.1f req/s  (%d responses, %d errors)",
+                result.responses / seconds, result.responses, result.errors));
+        System.out.println("status      " + result.codes);
+        System.out.println(String.format("%-12s %12s %12s", "latency", "corrected", "uncorrected"));
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999, 1.0 })
+            System.out.println(String.format(Locale.ROOT, "%-12s %10.3fms %10.3fms",
+                    quantile == 1.0 ? "max" : "p" + quantile * 100,
+                    result.corrected.quantile(quantile) / 1e6, result.uncorrected.quantile(quantile) / 1e6));
+    }
+
+    /**
+     * Start a server for load in this JVM.
+     * @param spec like "4:virtual", reactors and mode of calling handlers
+     */
+    static Server embedded(String spec, Integer port) throws IOException {
+        String[] parts = spec.split(":", 2);
+        Application app = new Application();
+        String mode = parts.length > 1 ? parts[1] : "reactor";
+        if (mode.equals("virtual"))
+            app.useVirtualThreads();
+        else if (mode.equals("pool"))
+            app.executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2));
+        else if (!mode.equals("reactor"))
+            throw new IllegalArgumentException(String.format("unknown mode %s", mode));
+        app.route("/hello", request -> new Response("Hello " + request.args.getOrDefault("name", "world")));
+        app.route("/bytes", request -> new Response(200, new byte[Integer.parseInt(
+                request.args.getOrDefault("size", "1024"))]));
+        app.route("/stream", request -> Response.stream(200, output -> output.write(new byte[Integer.parseInt(
+                request.args.getOrDefault("size", "1024"))])));
+        app.route("/sleep", request -> {
+            try {
+                Thread.sleep(Long.parseLong(request.args.getOrDefault("ms", "1")));
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            return new Response("slept");
+        });
+        Server server = new Server("127.0.0.1", port, app, Integer.parseInt(parts[0]));
+        server.accessLog(null);
+        new Thread(server::start, "webtoy-acceptor").start();
+        return server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException(String.format("invalid option %s, expect --name=value", arg));
+            String[] pair = arg.substring(2).split("=", 2);
+            options.put(pair[0], pair[1]);
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        Server server = null;
+        if (options.containsKey("embedded"))
+            server = embedded(options.get("embedded"), generator.address.getPort());
+        try {
+            generator.report(generator.run());
+        } finally {
+            if (server != null)
+                server.close();
+        }
+    }
+}
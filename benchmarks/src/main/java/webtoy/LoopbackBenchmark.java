@@ -0,0 +1,134 @@
+package webtoy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests against a real Server over loopback, with keep-alive clients reusing their
+ * connection and clients opening a new connection for every request.
+ *
+ * Allocations reported by the GC profiler include server threads, since they run in
+ * the same JVM as benchmark threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+    private static final Integer Port = 19009;
+    private static final byte[] KeepAliveRequest = "GET /hello?name=guiqiqi HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CloseRequest = ("GET /hello?name=guiqiqi HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Running {
+        Server server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            Application app = new Application();
+            app.route("/hello", request -> new Response("Hello " + request.args.get("name"))).inline();
+            this.server = new Server("127.0.0.1", Port, app, 2);
+            this.server.accessLog(null);
+            new Thread(this.server::start, "webtoy-acceptor").start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            this.server.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Socket socket;
+        OutputStream output;
+        InputStream input;
+        byte[] buffer = new byte[4096];
+
+        @Setup(Level.Iteration)
+        public void connect(Running running) throws IOException {
+            this.socket = new Socket("127.0.0.1", Port);
+            this.socket.setTcpNoDelay(true);
+            this.output = this.socket.getOutputStream();
+            this.input = this.socket.getInputStream();
+        }
+
+        @TearDown(Level.Iteration)
+        public void disconnect() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    @Benchmark
+    public int keepAlive(Client client) throws IOException {
+        client.output.write(KeepAliveRequest);
+        return readResponse(client.input, client.buffer);
+    }
+
+    @Benchmark
+    public int connectionPerRequest(Running running, Client client) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", Port)) {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(CloseRequest);
+            return readResponse(socket.getInputStream(), client.buffer);
+        }
+    }
+
+    /**
+     * Read one response, whose body length is told by Content-Length.
+     * @return bytes of response
+     */
+    private static int readResponse(InputStream input, byte[] buffer) throws IOException {
+        int read = 0;
+        int headerEnd = -1;
+        int total = -1;
+        while (total == -1 || read < total) {
+            int count = input.read(buffer, read, buffer.length - read);
+            if (count == -1)
+                throw new IOException("connection closed before response complete");
+            read += count;
+            if (headerEnd == -1) {
+                headerEnd = indexOfHeaderEnd(buffer, read);
+                if (headerEnd != -1)
+                    total = headerEnd + contentLength(buffer, headerEnd);
+            }
+        }
+        return read;
+    }
+
+    private static int indexOfHeaderEnd(byte[] buffer, int length) {
+        for (int index = 0; index + 3 < length; index++)
+            if (buffer[index] == '\r' && buffer[index + 1] == '\n'
+                    && buffer[index + 2] == '\r' && buffer[index + 3] == '\n')
+                return index + 4;
+        return -1;
+    }
+
+    private static int contentLength(byte[] buffer, int headerEnd) {
+        String header = new String(buffer, 0, headerEnd, StandardCharsets.US_ASCII);
+        int start = header.indexOf("Content-Length: ") + "Content-Length: ".length();
+        return Integer.parseInt(header.substring(start, header.indexOf("\r\n", start)));
+    }
+}
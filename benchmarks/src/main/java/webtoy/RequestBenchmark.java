@@ -0,0 +1,78 @@
+package webtoy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webtoy.Request.InvalidRequest;
+
+/**
+ * Parsing a request header from bytes, and decoding url encoded parameters.
+ *
+ * Run with "-prof gc" to compare gc.alloc.rate.norm: parseAndReadPath should allocate
+ * no more than parse, as headers, args and cookies are only decoded by parseAndReadAll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    private static final byte[] Header = ("GET /users/profile?name=guiqiqi&tab=activity&page=2 HTTP/1.1\r\n"
+            + "Host: localhost:9009\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: application/json\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Cookie: session=r2t5uvjq435r4q7ib3vtdjq120\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final String Form = "first_name=John&last_name=Doe&action=Submit&comment=Hello%20world%21";
+
+    private ByteBuffer buffer;
+    private Request request;
+
+    @Setup
+    public void setup() throws InvalidRequest {
+        this.buffer = ByteBuffer.wrap(Header);
+        this.request = new Request(this.buffer.duplicate());
+    }
+
+    @Benchmark
+    public Request parse() throws InvalidRequest {
+        return new Request(this.buffer.duplicate());
+    }
+
+    @Benchmark
+    public String parseAndReadHeader() throws InvalidRequest {
+        return new Request(this.buffer.duplicate()).header("user-agent");
+    }
+
+    @Benchmark
+    public String parseAndReadPath() throws InvalidRequest {
+        return new Request(this.buffer.duplicate()).path;
+    }
+
+    @Benchmark
+    public Integer parseAndReadAll() throws InvalidRequest {
+        Request request = new Request(this.buffer.duplicate());
+        return request.headers.size() + request.args.size() + request.cookies.size();
+    }
+
+    @Benchmark
+    public Map<String, String> urlDecode() throws InvalidRequest {
+        return this.request.urlDecode(Form, "&");
+    }
+}
@@ -0,0 +1,54 @@
+package webtoy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing responses with small and large bodies, both into a String with toString()
+ * and into a reused buffer the way reactors write them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+    @Param({ "16", "16384" })
+    public Integer size;
+
+    private String content;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        this.content = "x".repeat(this.size);
+        this.buffer = ByteBuffer.allocate(this.size + 1024);
+    }
+
+    @Benchmark
+    public String toStringResponse() {
+        return new Response(this.content).toString();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        Response response = new Response(this.content);
+        ByteBuffer buffer = this.buffer.clear();
+        response.writeHead(buffer);
+        response.writeBody(buffer);
+        return buffer;
+    }
+}
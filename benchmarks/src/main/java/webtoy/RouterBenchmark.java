@@ -0,0 +1,86 @@
+package webtoy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webtoy.Request.InvalidRequest;
+
+/**
+ * Matching paths against routers of several sizes.
+ *
+ * Every resource registers a static path, a static child and a typed parameter, so a router
+ * of 1000 resources holds 3001 routes. Paths looked up rotate over all resources.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+    @Param({ "10", "100", "1000" })
+    public Integer resources;
+
+    private Router router;
+    private String[] statics;
+    private Request[] params;
+    private int next;
+
+    @Setup
+    public void setup() throws InvalidRequest {
+        Handler handler = request -> new Response("");
+        this.router = new Router();
+        this.statics = new String[this.resources];
+        this.params = new Request[this.resources];
+        for (Integer index = 0; index < this.resources; index++) {
+            String base = String.format("/api/v1/resource%d", index);
+            this.router.register(base, List.of(HTTPMethod.GET, HTTPMethod.POST), handler);
+            this.router.register(base + "/items", List.of(HTTPMethod.GET), handler);
+            this.router.register(base + "/{id:int}", List.of(HTTPMethod.GET), handler);
+            this.statics[index] = base + "/items";
+            this.params[index] = new Request(String.format("GET %s/%d HTTP/1.1\r\n\r\n", base, index));
+        }
+        this.router.register("/static/*", List.of(HTTPMethod.GET), handler);
+        this.next = 0;
+    }
+
+    private int next() {
+        int index = this.next;
+        this.next = index + 1 == this.resources ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public Route matchStatic() throws Exception {
+        return this.router.match(this.statics[this.next()], HTTPMethod.GET);
+    }
+
+    @Benchmark
+    public Route matchParameter() throws Exception {
+        Request request = this.params[this.next()];
+        request.params = Map.of();
+        return this.router.match(request);
+    }
+
+    @Benchmark
+    public Object matchMissing() {
+        try {
+            return this.router.match("/api/v2/missing", HTTPMethod.GET);
+        } catch (Router.URLNotFound | Router.UnsupportedMethod error) {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package webtoy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written by a background thread, so reactors never wait for disk or console.
+ *
+ * Reactors put entries into a bounded lock-free ring buffer, writer thread takes them out
+ * in batches, formats them into one buffer and writes it to channel of log.
+ * When ring buffer is full new entries are dropped and counted, reactor is never blocked.
+ *
+ * Format of a line is a pattern of fields:
+ *
+ *   %t  time as yyyy/MM/dd HH:mm:ss, formatted once per second
+ *   %a  remote address of client
+ *   %m  method of request
+ *   %u  url of request
+ *   %s  status code of response
+ *   %b  bytes of response
+ *   %%  a single %
+ *
+ * Log written to a file could be rotated by size and by time, rotated file is renamed
+ * with time of rotation appended, like "access.log.20240101-120000".
+ */
+public class AccessLog implements AutoCloseable {
+    public static final String DefaultFormat = "%t %a - %m %u > %s";
+    public static Integer DefaultCapacity = 8192;
+
+    private static final DateTimeFormatter TimeFormatter = DateTimeFormatter
+            .ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter SuffixFormatter = DateTimeFormatter
+            .ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+    private static final Integer BatchSize = 64 * 1024;
+    private static final long IdleNanos = Duration.ofMillis(50).toNanos();
+
+    /**
+     * Slot of ring buffer, reused for every entry put into it.
+     */
+    private static class Entry {
+        long time;
+        String remote;
+        HTTPMethod method;
+        String url;
+        Integer code;
+        long bytes;
+    }
+
+    // Ring buffer, sequence of a slot tells whether it is free for tail or filled for head
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final Integer mask;
+    private final AtomicLong tail;
+    private long head;
+
+    private final Path path;
+    private WritableByteChannel channel;
+    private final Thread writer;
+    private volatile Boolean status;
+    private char[] format;
+
+    // Rotation, disabled when maxBytes is 0 and interval is null
+    private long maxBytes;
+    private Duration interval;
+    private long fileBytes;
+    private long nextRotation;
+
+    // Writer side buffer and cached time of current second
+    private final ByteBuffer batch;
+    private long second;
+    private byte[] stamp;
+
+    // Metrics of log
+    private final AtomicLong dropped;
+    private long written;
+
+    /**
+     * Make an access log appending to given file.
+     * @param path of log file, created if not exists
+     * @param capacity of ring buffer, rounded up to power of two
+     */
+    public AccessLog(Path path, Integer capacity) throws IOException {
+        this(path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND), capacity);
+        this.fileBytes = Files.size(path);
+    }
+
+    public AccessLog(Path path) throws IOException {
+        this(path, DefaultCapacity);
+    }
+
+    /**
+     * Make an access log writing to given channel, like console, it would not be rotated.
+     * @param channel for writing lines
+     * @param capacity of ring buffer, rounded up to power of two
+     */
+    public AccessLog(WritableByteChannel channel, Integer capacity) {
+        this(null, channel, capacity);
+    }
+
+    private AccessLog(Path path, WritableByteChannel channel, Integer capacity) {
+        Integer size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (Integer index = 0; index < size; index++) {
+            this.entries[index] = new Entry();
+            this.sequences.set(index, index);
+        }
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.head = 0;
+        this.path = path;
+        this.channel = channel;
+        this.writer = new Thread(this::run, "webtoy-access-log");
+        this.writer.setDaemon(true);
+        this.status = false;
+        this.format = DefaultFormat.toCharArray();
+        this.maxBytes = 0;
+        this.interval = null;
+        this.batch = ByteBuffer.allocate(BatchSize);
+        this.second = -1;
+        this.dropped = new AtomicLong();
+        this.written = 0;
+    }
+
+    /**
+     * Set format of lines, see fields in description of AccessLog.
+     * @param pattern of a line, without line break
+     * @return this log
+     */
+    public AccessLog format(String pattern) {
+        this.format = pattern.toCharArray();
+        return this;
+    }
+
+    /**
+     * Rotate log file once it grows over maxBytes, or every interval.
+     * Only works for logs written to a file, must be set before started.
+     * @param maxBytes of a log file, 0 for not rotating by size
+     * @param interval between rotations, null for not rotating by time
+     * @return this log
+     */
+    public AccessLog rotate(long maxBytes, Duration interval) {
+        if (this.path == null)
+            throw new IllegalStateException("only log written to a file could be rotated");
+        this.maxBytes = maxBytes;
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Start writer thread, does nothing if started already.
+     */
+    public synchronized void start() {
+        if (this.writer.getState() != Thread.State.NEW)
+            return;
+        if (this.interval != null)
+            this.nextRotation = System.currentTimeMillis() + this.interval.toMillis();
+        this.status = true;
+        this.writer.start();
+    }
+
+    /**
+     * Put an entry into log, could be called from any thread and never blocks.
+     * @param remote address of client
+     * @param request responded, null if data of client could not be parsed
+     * @param code of response
+     * @param bytes of response
+     * @return false if ring buffer is full and entry is dropped
+     */
+    public Boolean log(String remote, Request request, Integer code, long bytes) {
+        long sequence;
+        int slot;
+        while (true) {
+            sequence = this.tail.get();
+            slot = (int) sequence & this.mask;
+            long available = this.sequences.get(slot);
+            if (available == sequence) {
+                if (this.tail.compareAndSet(sequence, sequence + 1))
+                    break;
+            } else if (available < sequence) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+        }
+        Entry entry = this.entries[slot];
+        entry.time = System.currentTimeMillis();
+        entry.remote = remote;
+        entry.method = request == null ? null : request.method;
+        entry.url = request == null ? null : request.url;
+        entry.code = code;
+        entry.bytes = bytes;
+        this.sequences.set(slot, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Number of entries dropped because ring buffer was full.
+     */
+    public long dropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Number of lines written, could be read from other threads but may be a little stale.
+     */
+    public long written() {
+        return this.written;
+    }
+
+    /**
+     * Stop writer thread after all entries put before are written, then close file,
+     * a channel given to log is left open. Entries of a log never started are written
+     * on current thread.
+     */
+    @Override
+    public synchronized void close() {
+        this.status = false;
+        if (this.writer.getState() == Thread.State.NEW) {
+            this.run();
+            return;
+        }
+        LockSupport.unpark(this.writer);
+        if (this.writer.isAlive() && Thread.currentThread() != this.writer) {
+            try {
+                this.writer.join();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take entries out of ring buffer and write them until log closed.
+     */
+    private void run() {
+        try {
+            while (true) {
+                Boolean running = this.status;
+                Integer count = this.drain();
+                if (this.batch.position() > 0)
+                    this.write();
+                if (this.maxBytes > 0 && this.fileBytes >= this.maxBytes
+                        || this.interval != null && System.currentTimeMillis() >= this.nextRotation)
+                    this.rotate();
+                if (!running && count == 0)
+                    break;
+                if (count == 0)
+                    LockSupport.parkNanos(IdleNanos);
+            }
+        } catch (IOException error) {
+            // Log could not be written anymore, entries would be dropped once ring buffer is full
+        } finally {
+            this.status = false;
+            if (this.path != null) {
+                try {
+                    this.channel.close();
+                } catch (IOException error) {
+                    // Do nothing here
+                }
+            }
+        }
+    }
+
+    /**
+     * Format all filled slots into batch buffer, write batch whenever it is nearly full.
+     * @return number of entries taken
+     */
+    private Integer drain() throws IOException {
+        Integer count = 0;
+        while (true) {
+            int slot = (int) this.head & this.mask;
+            if (this.sequences.get(slot) != this.head + 1)
+                return count;
+            Entry entry = this.entries[slot];
+            this.append(entry);
+            entry.remote = null;
+            entry.url = null;
+            this.sequences.set(slot, this.head + this.entries.length);
+            this.head++;
+            count++;
+        }
+    }
+
+    /**
+     * Format an entry as a line into batch buffer.
+     */
+    private void append(Entry entry) throws IOException {
+        char[] format = this.format;
+        for (Integer index = 0; index < format.length; index++) {
+            char c = format[index];
+            if (c != '%' || index + 1 == format.length) {
+                this.put(c);
+                continue;
+            }
+            switch (format[++index]) {
+                case 't':
+                    this.put(this.stamp(entry.time));
+                    break;
+                case 'a':
+                    this.put(entry.remote);
+                    break;
+                case 'm':
+                    this.put(entry.method == null ? "?" : entry.method.name());
+                    break;
+                case 'u':
+                    this.put(entry.url == null ? "?" : entry.url);
+                    break;
+                case 's':
+                    this.put(entry.code);
+                    break;
+                case 'b':
+                    this.put(entry.bytes);
+                    break;
+                default:
+                    this.put(format[index]);
+            }
+        }
+        this.put('\n');
+        this.written++;
+    }
+
+    /**
+     * Formatted time of given millis, formatter only runs once a second.
+     */
+    private byte[] stamp(long time) {
+        long second = time / 1000;
+        if (second != this.second) {
+            this.second = second;
+            this.stamp = TimeFormatter.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+        }
+        return this.stamp;
+    }
+
+    private void put(char c) throws IOException {
+        if (c >= 0x80) {
+            this.put(String.valueOf(c));
+            return;
+        }
+        if (!this.batch.hasRemaining())
+            this.write();
+        this.batch.put((byte) c);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            if (!this.batch.hasRemaining())
+                this.write();
+            this.batch.put(b);
+        }
+    }
+
+    private void put(String value) throws IOException {
+        if (value == null) {
+            this.put('-');
+            return;
+        }
+        for (Integer index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c >= 0x80) {
+                this.put(value.substring(index).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            this.put(c);
+        }
+    }
+
+    private void put(long value) throws IOException {
+        if (value < 0) {
+            this.put('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            this.put((char) ('0' + value / divisor % 10));
+    }
+
+    /**
+     * Write whole batch buffer to channel.
+     */
+    private void write() throws IOException {
+        this.batch.flip();
+        while (this.batch.hasRemaining())
+            this.fileBytes += this.channel.write(this.batch);
+        this.batch.clear();
+    }
+
+    /**
+     * Rename current log file with time appended and continue with a new file.
+     */
+    private void rotate() throws IOException {
+        if (this.interval != null)
+            this.nextRotation = System.currentTimeMillis() + this.interval.toMillis();
+        if (this.path == null || this.fileBytes == 0)
+            return;
+        this.channel.close();
+        String suffix = SuffixFormatter.format(Instant.now());
+        Path rotated = this.path.resolveSibling(this.path.getFileName() + "." + suffix);
+        for (Integer index = 1; Files.exists(rotated); index++)
+            rotated = this.path.resolveSibling(this.path.getFileName() + "." + suffix + "." + index);
+        Files.move(this.path, rotated);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.fileBytes = 0;
+    }
+}
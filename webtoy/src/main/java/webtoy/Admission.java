@@ -0,0 +1,259 @@
+package webtoy;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Admission control of requests before they reach Application, set on server by
+ * Server.admission. Rejected requests never call handler, and are answered with responses
+ * serialized once when admission is configured.
+ *
+ * Every client address has a token bucket refilled at rate per second and holding burst
+ * tokens at most, a request finding bucket empty is answered with 429. Buckets are spread
+ * over striped maps with their own locks, buckets of clients least recently seen are
+ * dropped once a stripe is full, which only gives those clients a full bucket again.
+ *
+ * Requests being handled are limited, a request beyond limit is answered with 503 at once
+ * instead of waiting behind others. Limit adapts to latency of handlers (AIMD): it grows by
+ * one for every limit requests finished within target latency, and is cut by a tenth when
+ * a request finishes slower, at most once per target latency, so admitted requests keep
+ * their latency near target under overload instead of all requests slowing down together.
+ */
+public class Admission {
+    private static final Integer Stripes = 64;
+    private static final Integer MaxBucketsPerStripe = 4096;
+
+    /**
+     * Tokens of a client and when they were counted.
+     */
+    private static class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * Buckets of clients hashed into a stripe, in order they were used.
+     */
+    private static class Stripe extends LinkedHashMap<InetAddress, Bucket> {
+        private static final long serialVersionUID = 1L;
+
+        Stripe() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Bucket> eldest) {
+            return this.size() > MaxBucketsPerStripe;
+        }
+    }
+
+    // Limit of requests being handled, kept as bits of a double for growing by fractions
+    private final AtomicLong limit;
+    private final AtomicInteger inFlight;
+    private final AtomicLong decreased;
+    private Integer minLimit;
+    private Integer maxLimit;
+    private long target;
+
+    // Token buckets of clients, disabled while rate is null
+    private final Stripe[] stripes;
+    private Double rate;
+    private Double burst;
+
+    private Response overloaded;
+    private Response throttled;
+    private final LongAdder shed;
+    private final LongAdder limited;
+
+    /**
+     * Make admission control with limit of 100 requests being handled, adapting between
+     * 1 and 1000 for a target latency of 100 milliseconds, and no rate limit.
+     */
+    public Admission() {
+        this.limit = new AtomicLong(Double.doubleToRawLongBits(100));
+        this.inFlight = new AtomicInteger();
+        this.minLimit = 1;
+        this.maxLimit = 1000;
+        this.target = Duration.ofMillis(100).toNanos();
+        this.decreased = new AtomicLong(System.nanoTime() - this.target - 1);
+        this.stripes = new Stripe[Stripes];
+        for (Integer index = 0; index < Stripes; index++)
+            this.stripes[index] = new Stripe();
+        this.rate = null;
+        this.burst = null;
+        this.shed = new LongAdder();
+        this.limited = new LongAdder();
+        this.overloaded = rejection(503, Duration.ofSeconds(1));
+    }
+
+    /**
+     * Bounds of limit of requests being handled, set min equal to max for a fixed limit.
+     * @param initial limit
+     * @param min limit
+     * @param max limit
+     * @return this admission
+     */
+    public Admission limit(Integer initial, Integer min, Integer max) {
+        this.limit.set(Double.doubleToRawLongBits(initial));
+        this.minLimit = min;
+        this.maxLimit = max;
+        return this;
+    }
+
+    /**
+     * Latency of handlers which limit adapts to.
+     * @param target latency
+     * @return this admission
+     */
+    public Admission target(Duration target) {
+        this.target = target.toNanos();
+        // First slow request could cut limit at once
+        this.decreased.set(System.nanoTime() - this.target - 1);
+        return this;
+    }
+
+    /**
+     * Limit rate of requests of every client address.
+     * @param perSecond requests allowed on average, null for no rate limit
+     * @param burst requests allowed at once, null for requests allowed in a second
+     * @return this admission
+     */
+    public Admission rate(Double perSecond, Integer burst) {
+        if (perSecond == null) {
+            this.rate = null;
+            return this;
+        }
+        if (!(perSecond > 0))
+            throw new IllegalArgumentException(String.format("invalid rate %s", perSecond));
+        if (burst != null && burst < 1)
+            throw new IllegalArgumentException(String.format("invalid burst %d", burst));
+        this.burst = burst == null ? Math.ceil(perSecond) : burst.doubleValue();
+        this.throttled = rejection(429, Duration.ofSeconds((long) Math.ceil(1 / perSecond)));
+        this.rate = perSecond;
+        return this;
+    }
+
+    /**
+     * Time clients are asked to wait by Retry-After of 503 responses.
+     * @param retryAfter rounded up to seconds
+     * @return this admission
+     */
+    public Admission retryAfter(Duration retryAfter) {
+        this.overloaded = rejection(503, retryAfter);
+        return this;
+    }
+
+    /**
+     * Decide if a request of client could be handled.
+     * @param address of client
+     * @return frozen response rejecting request, null if admitted and release() must be called
+     */
+    Response admit(InetAddress address) {
+        if (this.rate != null && !this.take(address)) {
+            this.limited.increment();
+            return this.throttled;
+        }
+        Integer current;
+        do {
+            current = this.inFlight.get();
+            if (current >= (int) this.limit()) {
+                this.shed.increment();
+                return this.overloaded;
+            }
+        } while (!this.inFlight.compareAndSet(current, current + 1));
+        return null;
+    }
+
+    /**
+     * Finish a request admitted, and adapt limit to its latency.
+     * @param nanos from request taken to response finished
+     */
+    void release(long nanos) {
+        this.inFlight.decrementAndGet();
+        long now = System.nanoTime();
+        if (nanos > this.target) {
+            long last = this.decreased.get();
+            if (now - last > this.target && this.decreased.compareAndSet(last, now))
+                this.update(limit -> Math.max(this.minLimit, limit * 0.9));
+            return;
+        }
+        this.update(limit -> Math.min(this.maxLimit, limit + 1 / limit));
+    }
+
+    /**
+     * Current limit of requests being handled.
+     */
+    public double limit() {
+        return Double.longBitsToDouble(this.limit.get());
+    }
+
+    /**
+     * Number of requests being handled.
+     */
+    public Integer inFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * Number of requests rejected with 503 for too many requests being handled.
+     */
+    public long shed() {
+        return this.shed.sum();
+    }
+
+    /**
+     * Number of requests rejected with 429 for rate limit of client.
+     */
+    public long throttled() {
+        return this.limited.sum();
+    }
+
+    private void update(DoubleUnaryOperator function) {
+        long bits;
+        long updated;
+        do {
+            bits = this.limit.get();
+            updated = Double.doubleToRawLongBits(function.applyAsDouble(Double.longBitsToDouble(bits)));
+        } while (bits != updated && !this.limit.compareAndSet(bits, updated));
+    }
+
+    /**
+     * Take a token from bucket of client.
+     * @return false if bucket is empty
+     */
+    private Boolean take(InetAddress address) {
+        Integer hash = address.hashCode();
+        Stripe stripe = this.stripes[(hash ^ (hash >>> 16)) & (Stripes - 1)];
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(address);
+            if (bucket == null) {
+                stripe.put(address, new Bucket(this.burst - 1, now));
+                return true;
+            }
+            bucket.tokens = Math.min(this.burst, bucket.tokens + (now - bucket.updated) / 1e9 * this.rate);
+            bucket.updated = now;
+            if (bucket.tokens < 1)
+                return false;
+            bucket.tokens -= 1;
+            return true;
+        }
+    }
+
+    private static Response rejection(Integer code, Duration retryAfter) {
+        Response response = new Response(code);
+        response.headers.put("Retry-After", Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000)));
+        return response.freeze();
+    }
+}
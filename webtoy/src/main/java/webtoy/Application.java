@@ -0,0 +1,449 @@
+package webtoy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+public class Application {
+
+    private Router router = new Router();
+    private Executor executor = null;
+    private ResponseCache cache = new ResponseCache(MaxCacheBytes);
+
+    // Shared by useVirtualThreads(), handlers of streaming routes and writers of streamed
+    // responses, which block and so never run on reactor threads, lives as long as the process
+    static final Executor VirtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Handler calls of coalesced routes in flight, keyed like response cache
+    private final Map<String, CompletableFuture<Response>> flights = new ConcurrentHashMap<>();
+
+    // Size of response cache shared by all routes set with Route.cache
+    public static Long MaxCacheBytes = 64L * 1024 * 1024;
+
+    /**
+     * Respond to TCP server with request.
+     * 
+     * If no suitable method found but some other path matched, return an HTTP 405 response
+     * with methods of that path in Allow header;
+     * If no path matched at all, return an HTTP 404 response;
+     * If any Exception catched during handler's applying, return an HTTP 502 response.
+     * If route is cached and a response of same request found in cache, return it without
+     * calling handler.
+     * 
+     * @param request parsed from TCP server
+     * @return generated response
+     */
+    public Response respond(Request request) {
+        try {
+            Route route = this.match(request);
+            String key = this.cacheKey(route, request);
+            Response cached = this.lookup(key, request);
+            if (cached != null)
+                return cached;
+            return this.store(key, route, request, this.coalesce(route, request));
+        } catch (Router.UnsupportedMethod error) {
+            return methodNotAllowed(error);
+        } catch (Router.URLNotFound error) {
+            return new Response(404);
+        }
+    }
+
+    /**
+     * Call handler of route on current thread like call(), or wait for the same request
+     * in flight if route is coalesced, see respond(Request, Consumer).
+     */
+    private Response coalesce(Route route, Request request) {
+        String key = this.flightKey(route, request);
+        if (key == null)
+            return this.call(route, request);
+        CompletableFuture<Response> flight = new CompletableFuture<>();
+        CompletableFuture<Response> leader = this.flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            try {
+                return leader.get(route.coalesceWait().toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                return new Response(503);
+            } catch (ExecutionException | TimeoutException error) {
+                return this.call(route, request);
+            }
+        }
+        Response response = null;
+        try {
+            response = this.call(route, request);
+            return response;
+        } finally {
+            this.land(key, flight, response);
+        }
+    }
+
+    /**
+     * Call handler of route on current thread, wait for async handler until timeout of route.
+     */
+    private Response call(Route route, Request request) {
+        if (route.asyncHandler == null)
+            return this.apply(route, request);
+        CompletableFuture<Response> future = this.applyAsync(route, request);
+        try {
+            if (route.timeout() == null)
+                return future.get();
+            return future.get(route.timeout().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return new Response(503);
+        } catch (ExecutionException | TimeoutException error) {
+            return failure(error);
+        }
+    }
+
+    /**
+     * Respond request on executor of application, see respond(Request).
+     *
+     * Handler is called on executor unless no executor set or route is inline, then it is
+     * called on current thread. Callback is called on the thread which finished handler,
+     * if executor rejects request, callback is called with an HTTP 503 response.
+     *
+     * Async handlers are always called on current thread, callback is called on the thread
+     * completing their future. If timeout of route passed before handler finished,
+     * callback is called with an HTTP 504 response.
+     *
+     * Responses found in cache are given to callback at once on current thread.
+     *
+     * If route is coalesced and the same request is being handled, handler is not called
+     * again, callback is called with response of the request in flight once it finished.
+     * If it did not finish in wait time of route, handler is called for this request alone,
+     * on executor of application or common pool.
+     *
+     * @param request parsed from TCP server
+     * @param callback accepting generated response
+     */
+    void respond(Request request, Consumer<Response> callback) {
+        Route route;
+        try {
+            route = this.match(request);
+        } catch (Router.UnsupportedMethod error) {
+            callback.accept(methodNotAllowed(error));
+            return;
+        } catch (Router.URLNotFound error) {
+            callback.accept(new Response(404));
+            return;
+        }
+        String key = this.cacheKey(route, request);
+        Response cached = this.lookup(key, request);
+        if (cached != null) {
+            callback.accept(cached);
+            return;
+        }
+        if (key != null) {
+            Consumer<Response> respond = callback;
+            callback = response -> respond.accept(this.store(key, route, request, response));
+        }
+
+        String flightKey = this.flightKey(route, request);
+        if (flightKey == null) {
+            this.dispatch(route, request, callback);
+            return;
+        }
+        CompletableFuture<Response> flight = new CompletableFuture<>();
+        CompletableFuture<Response> leader = this.flights.putIfAbsent(flightKey, flight);
+        Consumer<Response> respond = callback;
+        if (leader != null) {
+            leader.copy().orTimeout(route.coalesceWait().toNanos(), TimeUnit.NANOSECONDS)
+                    .whenComplete((response, error) -> {
+                        if (error == null) {
+                            respond.accept(response);
+                            return;
+                        }
+                        Executor executor = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+                        try {
+                            executor.execute(() -> this.dispatch(route, request, respond));
+                        } catch (RejectedExecutionException rejected) {
+                            respond.accept(new Response(503));
+                        }
+                    });
+            return;
+        }
+        this.dispatch(route, request, response -> {
+            this.land(flightKey, flight, response);
+            respond.accept(response);
+        });
+    }
+
+    /**
+     * Call handler of route like respond(Request, Consumer), without looking up cache or flights.
+     */
+    private void dispatch(Route route, Request request, Consumer<Response> callback) {
+        if (route.asyncHandler != null) {
+            this.await(route, this.applyAsync(route, request), callback);
+            return;
+        }
+        Executor executor = this.executor;
+        if (executor == null && route.isStreaming() && !route.isInline())
+            executor = VirtualThreads;
+        if (executor == null || route.isInline()) {
+            callback.accept(this.apply(route, request));
+            return;
+        }
+        CompletableFuture<Response> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> this.apply(route, request), executor);
+        } catch (RejectedExecutionException error) {
+            callback.accept(new Response(503));
+            return;
+        }
+        this.await(route, future, callback);
+    }
+
+    /**
+     * Find route of request once its header arrived, so body could be received as route asks.
+     * @param request whose body is not received yet
+     * @return route, null if no route matched
+     */
+    Route find(Request request) {
+        try {
+            return this.match(request);
+        } catch (Router.UnsupportedMethod | Router.URLNotFound error) {
+            return null;
+        }
+    }
+
+    /**
+     * Match route of request with router and keep it on request, unless matched before.
+     */
+    private Route match(Request request) throws Router.UnsupportedMethod, Router.URLNotFound {
+        if (request.route != null)
+            return request.route;
+        Events.RouteMatch event = new Events.RouteMatch();
+        event.begin();
+        Route route = null;
+        try {
+            route = this.router.match(request);
+            request.route = route;
+            return route;
+        } finally {
+            if (event.shouldCommit()) {
+                event.path = request.path;
+                event.route = route == null ? null : route.path;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Key of request among handler calls in flight.
+     * @return key, null if route is not coalesced or request is not a GET
+     */
+    private String flightKey(Route route, Request request) {
+        if (route.coalesceWait() == null || request.method != HTTPMethod.GET)
+            return null;
+        return ResponseCache.key(request, route.cacheHeaders());
+    }
+
+    /**
+     * Finish a handler call in flight, requests waiting for it get a frozen copy of response,
+     * so it is never changed by writing it to several connections. Body of a streamed response
+     * could be sent only once, so waiting requests call handler by themselves.
+     */
+    private void land(String key, CompletableFuture<Response> flight, Response response) {
+        this.flights.remove(key, flight);
+        if (response == null)
+            flight.complete(new Response(502));
+        else if (response.publisher() != null)
+            flight.completeExceptionally(new IllegalStateException("streamed response could not be shared"));
+        else
+            flight.complete(response.freeze());
+    }
+
+    /**
+     * Key of request in response cache.
+     * @return key, null if route is not cached or request should not be cached
+     */
+    private String cacheKey(Route route, Request request) {
+        if (route.cacheTtl() == null || request.method != HTTPMethod.GET)
+            return null;
+        if (ResponseCache.directive(request.header("Cache-Control"), "no-store"))
+            return null;
+        return ResponseCache.key(request, route.cacheHeaders());
+    }
+
+    /**
+     * Find response of request in cache, unless request asked for a fresh one with no-cache.
+     */
+    private Response lookup(String key, Request request) {
+        if (key == null || ResponseCache.directive(request.header("Cache-Control"), "no-cache"))
+            return null;
+        return this.cache.get(key);
+    }
+
+    /**
+     * Store response into cache if request is cached.
+     * @return response to be written, frozen if stored
+     */
+    private Response store(String key, Route route, Request request, Response response) {
+        if (key == null)
+            return response;
+        return this.cache.put(key, request.path, response, route.cacheTtl());
+    }
+
+    /**
+     * Call callback once future completed or timeout of route passed.
+     */
+    private void await(Route route, CompletableFuture<Response> future, Consumer<Response> callback) {
+        if (route.timeout() != null)
+            future = future.orTimeout(route.timeout().toNanos(), TimeUnit.NANOSECONDS);
+        future.whenComplete((response, error) -> {
+            if (error != null)
+                callback.accept(failure(error));
+            else if (response == null)
+                callback.accept(new Response(502));
+            else
+                callback.accept(response);
+        });
+    }
+
+    /**
+     * Call async handler of route, any Exception from handler becomes an HTTP 502 response.
+     */
+    private CompletableFuture<Response> applyAsync(Route route, Request request) {
+        Events.HandlerApply event = new Events.HandlerApply();
+        event.begin();
+        CompletableFuture<Response> future = null;
+        try {
+            future = route.asyncHandler.apply(request);
+        } catch (Exception error) {
+            // Fall through to 502
+        }
+        if (event.shouldCommit()) {
+            event.route = route.path;
+            event.commit();
+        }
+        if (future != null)
+            return future;
+        return CompletableFuture.completedFuture(new Response(502));
+    }
+
+    /**
+     * HTTP 405 response telling methods supported by path in Allow header.
+     */
+    private static Response methodNotAllowed(Router.UnsupportedMethod error) {
+        Response response = new Response(405);
+        response.headers.put("Allow", error.allow);
+        return response;
+    }
+
+    /**
+     * Response for a handler failed with given error, HTTP 504 for timeout, otherwise 502.
+     */
+    private static Response failure(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null)
+            error = error.getCause();
+        if (error instanceof TimeoutException)
+            return new Response(504);
+        return new Response(502);
+    }
+
+    /**
+     * Call handler of route, any Exception from handler becomes an HTTP 502 response.
+     */
+    private Response apply(Route route, Request request) {
+        Events.HandlerApply event = new Events.HandlerApply();
+        event.begin();
+        Response response;
+        try {
+            response = route.handler.apply(request);
+        } catch (Exception error) {
+            response = new Response(502);
+        }
+        if (event.shouldCommit()) {
+            event.route = route.path;
+            event.code = response == null ? 0 : response.code;
+            event.commit();
+        }
+        return response;
+    }
+
+    /**
+     * Call handlers on given executor instead of reactor threads, so slow handlers
+     * (like waiting for a database) do not stall other connections.
+     * Set to null for calling all handlers on reactor threads, which is default.
+     * @param executor for calling handlers
+     */
+    public void executor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Call every handler on a new virtual thread, see executor(Executor).
+     */
+    public void useVirtualThreads() {
+        this.executor(VirtualThreads);
+    }
+
+    /**
+     * Cache of responses of routes set with Route.cache, for invalidating and reading its metrics.
+     * @return response cache of application
+     */
+    public ResponseCache cache() {
+        return this.cache;
+    }
+
+    /**
+     * Replace response cache of application, like for a larger one.
+     * @param cache for responses of cached routes
+     */
+    public void cache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Register handler with given path and methods.
+     * @param path of request
+     * @param method bound to given url path
+     * @param handler for generating response
+     * @return registered route for setting its options
+     */
+    public Route route(String path, HTTPMethod method, Handler handler) {
+        return this.router.register(path, List.of(method), handler);
+    }
+
+    public Route route(String path, List<HTTPMethod> methods, Handler handler) {
+        return this.router.register(path, methods, handler);
+    }
+
+    public Route route(String path, Handler handler) {
+        return this.route(path, HTTPMethod.GET, handler);
+    }
+
+    /**
+     * Register async handler with given path and methods, see AsyncHandler.
+     *
+     * Named differently from route, because a lambda could not tell a Handler from an AsyncHandler.
+     *
+     * @param path of request
+     * @param methods bound to given url path
+     * @param handler for generating future of response
+     * @return registered route for setting its options
+     */
+    public Route routeAsync(String path, List<HTTPMethod> methods, AsyncHandler handler) {
+        return this.router.register(new Route(path, methods, handler));
+    }
+
+    public Route routeAsync(String path, HTTPMethod method, AsyncHandler handler) {
+        return this.routeAsync(path, List.of(method), handler);
+    }
+
+    public Route routeAsync(String path, AsyncHandler handler) {
+        return this.routeAsync(path, HTTPMethod.GET, handler);
+    }
+}
@@ -0,0 +1,16 @@
+package webtoy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * An asynchronous HTTP request handler, which returns a future of response at once
+ * instead of waiting for it (like waiting for responses from several backends).
+ *
+ * Function is called on reactor thread, so it must not block; Response is written
+ * once the future is completed on any thread. If future is completed exceptionally,
+ * an HTTP 502 response is written, or HTTP 504 if timeout of its route passed.
+ */
+public interface AsyncHandler extends Function<Request, CompletableFuture<Response>> {
+
+}
@@ -0,0 +1,138 @@
+package webtoy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of reusable ByteBuffers grouped by size classes.
+ *
+ * Size classes are powers of two from MinSize up to maxSize, a buffer acquired with any size
+ * gets capacity of the smallest class holding it, buffers larger than maxSize are allocated
+ * without pooling. Released buffers are kept until pool holds maxBytes, then dropped for GC.
+ *
+ * A pool is not thread-safe, it is owned by a single reactor and only used on its thread,
+ * metrics could be read from other threads but may be a little stale.
+ */
+public class BufferPool {
+    public static final Integer MinSize = 8192;
+
+    private final Integer maxSize;
+    private final Long maxBytes;
+    private final Boolean direct;
+    private final ArrayDeque<ByteBuffer>[] classes;
+
+    // Metrics of pool
+    private long hits;
+    private long misses;
+    private long held;
+    private long leased;
+
+    /**
+     * Make a pool of buffers.
+     * @param maxSize of largest size class, rounded up to power of two
+     * @param maxBytes of idle buffers kept in pool
+     * @param direct if buffers should be allocated off-heap
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(Integer maxSize, Long maxBytes, Boolean direct) {
+        Integer count = sizeClass(Math.max(maxSize, MinSize)) + 1;
+        this.maxSize = MinSize << (count - 1);
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+        this.classes = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[count];
+        for (Integer index = 0; index < count; index++)
+            this.classes[index] = new ArrayDeque<>();
+    }
+
+    /**
+     * Take a cleared buffer with at least given capacity out of pool, allocate one if pool is empty.
+     * @param size needed of buffer
+     * @return buffer whose limit equals to its capacity
+     */
+    public ByteBuffer acquire(Integer size) {
+        this.leased++;
+        if (size > this.maxSize) {
+            this.misses++;
+            return this.allocate(size);
+        }
+        Integer index = sizeClass(size);
+        ByteBuffer buffer = this.classes[index].poll();
+        if (buffer == null) {
+            this.misses++;
+            return this.allocate(MinSize << index);
+        }
+        this.hits++;
+        this.held -= buffer.capacity();
+        return buffer.clear();
+    }
+
+    /**
+     * Capacity of buffer which would be acquired with given size.
+     * @param size needed of buffer
+     * @return capacity of its size class, or size itself if it is not pooled
+     */
+    public Integer capacityOf(Integer size) {
+        if (size > this.maxSize)
+            return size;
+        return MinSize << sizeClass(size);
+    }
+
+    /**
+     * Give a buffer acquired from this pool back, it must not be used after released.
+     * @param buffer acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        this.leased--;
+        Integer capacity = buffer.capacity();
+        if (capacity > this.maxSize || Integer.bitCount(capacity) != 1 || capacity < MinSize)
+            return;
+        if (buffer.isDirect() != this.direct || this.held + capacity > this.maxBytes)
+            return;
+        this.held += capacity;
+        this.classes[sizeClass(capacity)].push(buffer);
+    }
+
+    /**
+     * Number of acquires served by a pooled buffer.
+     */
+    public long hits() {
+        return this.hits;
+    }
+
+    /**
+     * Number of acquires which had to allocate a new buffer.
+     */
+    public long misses() {
+        return this.misses;
+    }
+
+    /**
+     * Bytes of idle buffers currently kept in pool.
+     */
+    public long held() {
+        return this.held;
+    }
+
+    /**
+     * Number of buffers acquired and not released yet, buffers are leaked if it is not 0
+     * after all of their users are closed.
+     */
+    public long leased() {
+        return this.leased;
+    }
+
+    private ByteBuffer allocate(Integer capacity) {
+        if (this.direct)
+            return ByteBuffer.allocateDirect(capacity);
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Index of smallest size class holding given size.
+     */
+    private static Integer sizeClass(Integer size) {
+        if (size <= MinSize)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MinSize);
+    }
+}
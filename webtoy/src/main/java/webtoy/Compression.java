@@ -0,0 +1,158 @@
+package webtoy;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Settings of compressing response bodies with gzip or deflate, set on server by
+ * Server.compression. Compression is negotiated with Accept-Encoding of every request.
+ *
+ * Only bodies of at least minSize bytes whose Content-Type is allowed are compressed,
+ * responses having Content-Encoding or Cache-Control no-transform are left as they are,
+ * and so are file responses, which are sent from file without being read.
+ * Every response which could be compressed gets "Vary: Accept-Encoding", compressed ones
+ * get Content-Encoding too.
+ *
+ * A frozen response written many times (like from cache, see Route.cache) keeps every
+ * variant once serialized, so it is neither copied nor serialized again. With precompress,
+ * compressed variants are kept too and it is compressed only once, otherwise it is
+ * compressed for every client accepting an encoding.
+ */
+public class Compression {
+    public static final String Gzip = "gzip";
+    public static final String Deflate = "deflate";
+
+    private Integer minSize;
+    private List<String> contentTypes;
+    private Integer level;
+    private Boolean precompress;
+
+    /**
+     * Make settings compressing text, JSON, JavaScript, XML and SVG bodies of 1 KB or more.
+     */
+    public Compression() {
+        this.minSize = 1024;
+        this.contentTypes = List.of("text/*", "application/json", "application/javascript",
+                "application/xml", "image/svg+xml");
+        this.level = Deflater.DEFAULT_COMPRESSION;
+        this.precompress = false;
+    }
+
+    /**
+     * Smallest body worth compressing.
+     * @param minSize in bytes
+     * @return these settings
+     */
+    public Compression minSize(Integer minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * Content types to be compressed, a type like "text/*" allows all of its subtypes.
+     * @param contentTypes allowed
+     * @return these settings
+     */
+    public Compression contentTypes(String... contentTypes) {
+        this.contentTypes = List.of(contentTypes);
+        return this;
+    }
+
+    /**
+     * Level of Deflater, from 1 (fastest) to 9 (smallest).
+     * @param level of compression
+     * @return these settings
+     */
+    public Compression level(Integer level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Keep compressed variants on frozen responses for writing them again without compressing.
+     * @param precompress if compressed variants should be kept
+     * @return these settings
+     */
+    public Compression precompress(Boolean precompress) {
+        this.precompress = precompress;
+        return this;
+    }
+
+    public Integer level() {
+        return this.level;
+    }
+
+    public Boolean precompress() {
+        return this.precompress;
+    }
+
+    /**
+     * If body of response is worth compressing, regardless of what client accepts.
+     * @param response to be written
+     * @return true if response should vary on Accept-Encoding
+     */
+    public Boolean compressible(Response response) {
+        if (response.code < 200 || response.code == 204 || response.code == 304 || response.file() != null
+                || response.publisher() != null)
+            return false;
+        if (response.headers.containsKey("Content-Encoding") || response.length() < this.minSize)
+            return false;
+        if (ResponseCache.directive(response.headers.get("Cache-Control"), "no-transform"))
+            return false;
+        String type = response.headers.getOrDefault("Content-Type", Response.DefaultContentType);
+        Integer end = type.indexOf(';');
+        if (end != -1)
+            type = type.substring(0, end);
+        type = type.strip();
+        for (String allowed : this.contentTypes) {
+            if (allowed.endsWith("/*")) {
+                if (type.regionMatches(true, 0, allowed, 0, allowed.length() - 1))
+                    return true;
+            } else if (type.equalsIgnoreCase(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose encoding from Accept-Encoding header of request by q-values, gzip is preferred
+     * when both are accepted equally. A coding not listed gets q-value of "*" if given.
+     * @param accept value of Accept-Encoding, could be null
+     * @return Gzip or Deflate, null if client accepts neither
+     */
+    public static String negotiate(String accept) {
+        if (accept == null)
+            return null;
+        Double gzip = null;
+        Double deflate = null;
+        Double any = null;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].strip();
+            Double quality = 1.0;
+            for (Integer index = 1; index < params.length; index++) {
+                String param = params[index].strip();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException error) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(Gzip))
+                gzip = quality;
+            else if (coding.equalsIgnoreCase(Deflate))
+                deflate = quality;
+            else if (coding.equals("*"))
+                any = quality;
+        }
+        Double fallback = any == null ? 0.0 : any;
+        gzip = gzip == null ? fallback : gzip;
+        deflate = deflate == null ? fallback : deflate;
+        if (gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? Gzip : Deflate;
+    }
+}
@@ -0,0 +1,91 @@
+package webtoy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compressing response bodies on a reactor thread, owned by a single reactor.
+ *
+ * Deflaters are native resources and costly to make, so every reactor keeps one for gzip
+ * and one for deflate and resets them after every response, they are ended with reactor.
+ */
+class Compressor {
+    // Header of gzip member: magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GzipHeader = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final Integer GzipTrailerSize = 8;
+
+    final Integer level;
+    private final BufferPool pool;
+    private final Deflater gzip;
+    private final Deflater deflate;
+    private final CRC32 crc;
+
+    Compressor(Integer level, BufferPool pool) {
+        this.level = level;
+        this.pool = pool;
+        this.gzip = new Deflater(level, true);
+        this.deflate = new Deflater(level);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Compress body of response into a buffer acquired from pool of reactor.
+     * @param response whose body is compressed
+     * @param encoding Compression.Gzip or Compression.Deflate
+     * @return flipped buffer which should be released to pool after written
+     */
+    ByteBuffer compress(Response response, String encoding) {
+        ByteBuffer input = response.body();
+        ByteBuffer encoded = null;
+        if (input == null) {
+            encoded = this.pool.acquire((int) response.length());
+            response.writeBody(encoded);
+            input = encoded.flip();
+        }
+        Boolean gzip = encoding.equals(Compression.Gzip);
+        Deflater deflater = gzip ? this.gzip : this.deflate;
+        Integer size = input.remaining();
+        ByteBuffer output = this.pool.acquire(size + (size >> 10) + 64);
+        if (gzip) {
+            output.put(GzipHeader);
+            this.crc.reset();
+            this.crc.update(input.duplicate());
+        }
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (output.remaining() < 64)
+                output = this.grow(output);
+            deflater.deflate(output);
+        }
+        deflater.reset();
+        if (gzip) {
+            if (output.remaining() < GzipTrailerSize)
+                output = this.grow(output);
+            output.order(ByteOrder.LITTLE_ENDIAN);
+            output.putInt((int) this.crc.getValue());
+            output.putInt(size);
+            output.order(ByteOrder.BIG_ENDIAN);
+        }
+        if (encoded != null)
+            this.pool.release(encoded);
+        return output.flip();
+    }
+
+    /**
+     * End deflaters, compressor could not be used after closed.
+     */
+    void close() {
+        this.gzip.end();
+        this.deflate.end();
+    }
+
+    private ByteBuffer grow(ByteBuffer output) {
+        ByteBuffer larger = this.pool.acquire(output.capacity() * 2);
+        larger.put(output.flip());
+        this.pool.release(output);
+        return larger;
+    }
+}
@@ -0,0 +1,648 @@
+package webtoy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import webtoy.Request.InvalidRequest;
+
+/**
+ * State of a persistent HTTP/1.1 client connection, attached to its SelectionKey.
+ *
+ * Every read appends data into inbound buffer, then all complete requests found in
+ * buffer are taken out one by one in order they were sent (pipelining).
+ * Data of an incomplete request stays in buffer until following reads complete it,
+ * reactor never blocks waiting for the rest of a request.
+ *
+ * Connection stays open after a response unless client asked "Connection: close"
+ * (persistent connections are default in HTTP/1.1, see RFC 2616 section 8.1).
+ *
+ * Responses are queued as outbound buffers and written with gathering writes whenever
+ * socket accepts data, what kernel did not accept stays queued until OP_WRITE fires.
+ * Once queued bytes exceed MaxOutboundBytes connection is congested, and no more
+ * requests should be served on it until client reads its responses.
+ *
+ * Bodies of file responses are queued as regions of a file, and sent with transferTo
+ * from file to socket, so their bytes never pass through user space.
+ *
+ * Requests being handled are kept as exchanges in order, a response finished by handler
+ * is only written after all responses to requests sent before it.
+ *
+ * Body of a request on a route set to stream or spill is not kept in inbound buffer, data is
+ * moved into its RequestBody as it arrives, see RequestBody.
+ */
+class Connection {
+    private static final AtomicLong Ids = new AtomicLong();
+
+    final long id;
+    final SocketChannel channel;
+    final InetAddress address;
+    private final BufferPool pool;
+    private ByteBuffer inbound;
+    private Boolean keepAlive;
+
+    // Responses waiting for being written, pooled ones are given back after written,
+    // every Region marker in outbound stands for the next file region in regions
+    private static final ByteBuffer Region = ByteBuffer.allocate(0);
+    private final ArrayDeque<ByteBuffer> outbound;
+    private final ArrayDeque<Boolean> pooled;
+    private final ArrayDeque<FileRegion> regions;
+    private final ByteBuffer[] gathering;
+    private long outboundBytes;
+
+    // Requests taken from inbound buffer and not written yet
+    private final ArrayDeque<Exchange> exchanges;
+    private Boolean closed;
+    private String remote;
+    SelectionKey key;
+
+    // Response whose body is being sent in chunks, responses after it wait until it ends
+    Reactor.ChunkedResponse responding;
+
+    // Request which could not be served, answered once requests before it are responded
+    private RequestRejected rejected;
+
+    // Timeout armed on connection and its place in timer wheel of reactor, see TimerWheel
+    Server.Timeout timeout;
+    long deadline;
+    Integer slot;
+    Connection previous;
+    Connection following;
+
+    // Parsing progress of the request at head of inbound buffer
+    private State state;
+    private Integer scanned;
+    private Integer headerSize;
+    private Request request;
+    private RequestBody body;
+
+    /**
+     * Waiting for header of next request, for body of a parsed header, for body streamed into
+     * RequestBody, or having received whole body of a spilling request not taken yet.
+     */
+    private enum State {
+        HEADER,
+        BODY,
+        STREAM,
+        READY
+    }
+
+    /**
+     * Part of a file queued for being sent, its file is closed once sent or dropped
+     * if region owns it, regions of one file share it and only the last one owns it.
+     */
+    private static class FileRegion {
+        final FileChannel file;
+        final Boolean owner;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel file, long position, long count, Boolean owner) {
+            this.file = file;
+            this.owner = owner;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        void close() {
+            if (!this.owner)
+                return;
+            try {
+                this.file.close();
+            } catch (IOException error) {
+                // Do nothing here
+            }
+        }
+    }
+
+    /**
+     * Throw when data on connection could not be served as a request,
+     * a canned error response should be sent and connection be closed.
+     */
+    class RequestRejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final Integer code;
+        public final transient ByteBuffer response;
+        public final transient Request request;
+
+        RequestRejected(Integer code, ByteBuffer response, Request request) {
+            super(String.format("request rejected with %d", code));
+            this.code = code;
+            this.response = response;
+            this.request = request;
+        }
+    }
+
+    Connection(SocketChannel channel, BufferPool pool, InetAddress address) {
+        this.id = Ids.incrementAndGet();
+        this.channel = channel;
+        this.address = address;
+        this.pool = pool;
+        this.inbound = null;
+        this.keepAlive = true;
+        this.outbound = new ArrayDeque<>();
+        this.pooled = new ArrayDeque<>();
+        this.regions = new ArrayDeque<>();
+        this.gathering = new ByteBuffer[16];
+        this.outboundBytes = 0;
+        this.exchanges = new ArrayDeque<>();
+        this.closed = false;
+        this.state = State.HEADER;
+        this.scanned = 0;
+        this.headerSize = 0;
+    }
+
+    /**
+     * Read available data from client into inbound buffer.
+     *
+     * Inbound buffer is taken from pool of reactor when data arrives and given back once
+     * all buffered requests are served, so idle connections hold no buffer.
+     *
+     * @return bytes read, -1 if client closed connection
+     */
+    Integer read() throws IOException {
+        if (this.inbound == null)
+            this.inbound = this.pool.acquire(Server.MaxRequestHeaderSize);
+        Events.SocketRead event = new Events.SocketRead();
+        event.begin();
+        Integer count = this.channel.read(this.inbound);
+        if (count == -1 && this.body != null)
+            this.body.fail(new EOFException("connection closed before whole body arrived"));
+        if (event.shouldCommit()) {
+            event.connection = this.id;
+            event.bytes = count;
+            event.commit();
+        }
+        return count;
+    }
+
+    /**
+     * Give buffers of connection back to pool, called once connection is closed.
+     */
+    void release() {
+        this.closed = true;
+        for (Exchange exchange : this.exchanges)
+            if (exchange.request.stream != null)
+                exchange.request.stream.close();
+        this.exchanges.clear();
+        if (this.body != null)
+            this.body.close();
+        if (this.responding != null) {
+            this.responding.cancel();
+            this.responding = null;
+        }
+        while (!this.outbound.isEmpty()) {
+            ByteBuffer buffer = this.outbound.poll();
+            if (this.pooled.poll())
+                this.pool.release(buffer);
+        }
+        while (!this.regions.isEmpty())
+            this.regions.poll().close();
+        this.outboundBytes = 0;
+        this.releaseInbound();
+    }
+
+    private void releaseInbound() {
+        if (this.inbound == null)
+            return;
+        this.pool.release(this.inbound);
+        this.inbound = null;
+    }
+
+    /**
+     * If connection should be kept after responding last request taken by next().
+     * @return false if client asked for closing connection
+     */
+    Boolean keepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * If connection is closed, finished handlers should not write to it anymore.
+     * @return true if connection released
+     */
+    Boolean closed() {
+        return this.closed;
+    }
+
+    /**
+     * Address of client for logging, looked up once per connection.
+     * @return address like "127.0.0.1:52000", "?" if it could not be found
+     */
+    String remote() {
+        if (this.remote == null) {
+            try {
+                this.remote = this.channel.getRemoteAddress().toString().substring(1);
+            } catch (IOException | NullPointerException error) {
+                this.remote = "?";
+            }
+        }
+        return this.remote;
+    }
+
+    /**
+     * Start handling a request taken by next(), its response is written in order by complete().
+     * @param request taken from connection
+     * @return exchange of request
+     */
+    Exchange begin(Request request) {
+        Exchange exchange = new Exchange(request, !this.keepAlive);
+        this.exchanges.add(exchange);
+        return exchange;
+    }
+
+    /**
+     * Take the earliest exchange if its response is finished and no response is being streamed.
+     * @return finished exchange whose response could be written, null if not finished yet
+     */
+    Exchange complete() {
+        Exchange exchange = this.exchanges.peek();
+        if (exchange == null || exchange.response == null || this.responding != null)
+            return null;
+        return this.exchanges.poll();
+    }
+
+    /**
+     * If no request is being handled on connection.
+     * @return true if all requests taken are responded
+     */
+    Boolean idle() {
+        return this.exchanges.isEmpty() && this.responding == null;
+    }
+
+    /**
+     * Answer a request which could not be served after all requests taken before it,
+     * then close connection, no more requests would be served.
+     * @param rejected request with its canned response
+     */
+    void reject(RequestRejected rejected) {
+        this.rejected = rejected;
+        this.keepAlive = false;
+    }
+
+    /**
+     * Take rejected request once all requests before it are responded.
+     * @return rejection whose response should be queued, null if none or not its turn yet
+     */
+    RequestRejected rejection() {
+        if (this.rejected == null || !this.idle())
+            return null;
+        RequestRejected rejected = this.rejected;
+        this.rejected = null;
+        return rejected;
+    }
+
+    /**
+     * Close connection once all queued responses are written, no more requests would be served.
+     */
+    void closeAfterWrite() {
+        this.keepAlive = false;
+    }
+
+    /**
+     * Queue data to be written to client after all data queued before.
+     * @param buffer data between position and limit would be written
+     * @param pooled if buffer is taken from pool of connection and should be given back
+     */
+    void enqueue(ByteBuffer buffer, Boolean pooled) {
+        this.outbound.add(buffer);
+        this.pooled.add(pooled);
+        this.outboundBytes += buffer.remaining();
+    }
+
+    /**
+     * Queue part of a file to be sent after all data queued before.
+     * @param file opened for reading
+     * @param position of first byte to be sent
+     * @param count of bytes to be sent
+     * @param close if file should be closed after sent or once connection released
+     */
+    void enqueue(FileChannel file, long position, long count, Boolean close) {
+        this.outbound.add(Region);
+        this.pooled.add(false);
+        this.regions.add(new FileRegion(file, position, count, close));
+        this.outboundBytes += count;
+    }
+
+    /**
+     * Bytes queued and not written yet.
+     */
+    long outbound() {
+        return this.outboundBytes;
+    }
+
+    /**
+     * What part of a request is being received on connection.
+     * @return HEADER if part of a header is buffered, BODY if rest of a body is waited for,
+     *         null if no data of next request arrived
+     */
+    Server.Timeout receiving() {
+        if (this.state == State.BODY || this.streaming())
+            return Server.Timeout.BODY;
+        if (this.inbound != null && this.inbound.position() > 0)
+            return Server.Timeout.HEADER;
+        return null;
+    }
+
+    /**
+     * If body of a request is being streamed and handler is not behind reading it,
+     * then connection should be read even if it is congested or closing.
+     */
+    Boolean streaming() {
+        return this.state == State.STREAM && !this.body.paused();
+    }
+
+    /**
+     * If too many bytes are waiting for being written to client,
+     * or too many pipelined requests are being handled.
+     * @return true if connection should stop serving requests
+     */
+    Boolean congested() {
+        return this.outboundBytes > Server.MaxOutboundBytes
+                || this.exchanges.size() >= Server.MaxPipelinedRequests;
+    }
+
+    /**
+     * Write queued data to client until all written or socket buffer is full.
+     * @return true if nothing left in queue
+     */
+    Boolean flush() throws IOException {
+        Events.SocketWrite event = new Events.SocketWrite();
+        event.begin();
+        long total = 0;
+        while (!this.outbound.isEmpty()) {
+            if (this.outbound.peek() == Region) {
+                FileRegion region = this.regions.peek();
+                long written = this.transfer(region);
+                this.outboundBytes -= written;
+                total += written;
+                if (region.remaining > 0)
+                    break;
+                this.outbound.poll();
+                this.pooled.poll();
+                this.regions.poll().close();
+                continue;
+            }
+            Integer count = 0;
+            for (ByteBuffer buffer : this.outbound) {
+                if (buffer == Region)
+                    break;
+                this.gathering[count++] = buffer;
+                if (count == this.gathering.length)
+                    break;
+            }
+            long written = this.channel.write(this.gathering, 0, count);
+            this.outboundBytes -= written;
+            total += written;
+            while (!this.outbound.isEmpty() && this.outbound.peek() != Region && !this.outbound.peek().hasRemaining()) {
+                ByteBuffer buffer = this.outbound.poll();
+                if (this.pooled.poll())
+                    this.pool.release(buffer);
+            }
+            if (written == 0 || this.gathering[count - 1].hasRemaining())
+                break;
+        }
+        for (Integer index = 0; index < this.gathering.length; index++)
+            this.gathering[index] = null;
+        if (total > 0 && event.shouldCommit()) {
+            event.connection = this.id;
+            event.bytes = total;
+            event.drained = this.outbound.isEmpty();
+            event.commit();
+        }
+        return this.outbound.isEmpty();
+    }
+
+    /**
+     * Send file region to socket until all sent or socket buffer is full.
+     * @return bytes sent
+     * @throws IOException if file ends before region, Content-Length could not be kept
+     */
+    private long transfer(FileRegion region) throws IOException {
+        long total = 0;
+        while (region.remaining > 0) {
+            long written = region.file.transferTo(region.position, region.remaining, this.channel);
+            if (written == 0) {
+                if (region.position >= region.file.size())
+                    throw new IOException("file truncated while being sent");
+                break;
+            }
+            region.position += written;
+            region.remaining -= written;
+            total += written;
+        }
+        return total;
+    }
+
+    /**
+     * Take next complete request out of inbound buffer.
+     *
+     * Parsing is resumable across reads: while waiting for header, scanning for double CRLF
+     * continues from where last scan stopped; once header parsed, request is kept and
+     * following reads only fill the body until Content-Length bytes arrived.
+     *
+     * Header of request must be found in first MaxRequestHeaderSize bytes,
+     * buffer grows for holding whole body.
+     *
+     * Route of request is found once header parsed, for its limit of body size and for how its
+     * body should be received. A request on a streaming route is taken at once, and following
+     * data is moved into its body until whole body arrived, see feed().
+     *
+     * @param application finding route of request
+     * @return next request, null if data of a complete request not arrived yet
+     * @throws RequestRejected if request could not be parsed or is too large
+     */
+    Request next(Application application) throws RequestRejected {
+        this.feed();
+        if (this.state == State.READY) {
+            Request request = this.request;
+            this.state = State.HEADER;
+            this.request = null;
+            return this.taken(request);
+        }
+        if (this.inbound == null || this.state == State.STREAM)
+            return null;
+        Integer available = this.inbound.position();
+        if (this.state == State.HEADER) {
+            Events.HeaderScan scan = new Events.HeaderScan();
+            scan.begin();
+            this.headerSize = this.findHeaderEnd(available);
+            if (scan.shouldCommit()) {
+                scan.connection = this.id;
+                scan.bytes = available;
+                scan.found = this.headerSize != -1;
+                scan.commit();
+            }
+            if (this.headerSize > Server.MaxRequestHeaderSize)
+                throw new RequestRejected(431, Response.HeaderTooLargeResponse, null);
+            if (this.headerSize == -1) {
+                if (available >= Server.MaxRequestHeaderSize)
+                    throw new RequestRejected(431, Response.HeaderTooLargeResponse, null);
+                return null;
+            }
+            // Try to parse header of request and get Content-Length
+            Events.RequestParse parse = new Events.RequestParse();
+            parse.begin();
+            try {
+                this.request = new Request(this.inbound.slice(0, this.headerSize));
+            } catch (InvalidRequest error) {
+                throw new RequestRejected(411, Response.LengthRequiredResponse, null);
+            }
+            if (parse.shouldCommit()) {
+                parse.connection = this.id;
+                parse.bytes = this.headerSize;
+                parse.path = this.request.path;
+                parse.commit();
+            }
+            Route route = application.find(this.request);
+            Integer limit = route == null || route.maxBodySize() == null ? Server.MaxRequestBodySize
+                    : route.maxBodySize();
+            if (this.request.bodysize > limit)
+                throw new RequestRejected(413, Response.ContentTooLargeResponse, this.request);
+            if (route != null && (route.isStreaming() || route.spill() != null))
+                return this.stream(route);
+
+            // Grow buffer if it could not hold whole request
+            Integer total = this.headerSize + this.request.bodysize;
+            if (total > this.inbound.capacity())
+                this.resize(total);
+            this.state = State.BODY;
+        }
+
+        // Wait for rest of body
+        Request request = this.request;
+        Integer total = this.headerSize + request.bodysize;
+        if (available < total)
+            return null;
+
+        // Attach body into request
+        try {
+            request.parseBody(this.inbound.slice(this.headerSize, request.bodysize));
+        } catch (InvalidRequest error) {
+            throw new RequestRejected(400, Response.InvalidRequestResponse, request);
+        }
+        this.consume(total);
+        return this.taken(request);
+    }
+
+    /**
+     * Start receiving body of request just parsed into its RequestBody.
+     * @param route of request, set to stream or spill
+     * @return request if it should be taken now, null if it waits for its body
+     */
+    private Request stream(Route route) {
+        Request request = this.request;
+        request.stream = new RequestBody(request.bodysize, route.spill());
+        this.consume(this.headerSize);
+        if (request.bodysize == 0)
+            return this.taken(request);
+        this.state = State.STREAM;
+        this.body = request.stream;
+        if (route.isStreaming()) {
+            this.feed();
+            return this.taken(request);
+        }
+        this.request = request;
+        this.feed();
+        if (this.state != State.READY)
+            return null;
+        this.state = State.HEADER;
+        this.request = null;
+        return this.taken(request);
+    }
+
+    /**
+     * Move body data buffered in inbound buffer into body being streamed. Once whole body
+     * arrived, a spilling request becomes READY and a streaming one is done with.
+     */
+    void feed() {
+        if (this.state != State.STREAM || this.inbound == null)
+            return;
+        Integer count = (int) Math.min(this.inbound.position(), this.body.missing());
+        if (count > 0) {
+            this.body.offer(this.inbound.slice(0, count));
+            this.drop(count);
+        }
+        if (this.body.missing() > 0)
+            return;
+        this.body = null;
+        this.state = this.request != null ? State.READY : State.HEADER;
+    }
+
+    /**
+     * Hand out a request, connection is closing after it if client asked so.
+     */
+    private Request taken(Request request) {
+        if ("close".equalsIgnoreCase(request.header("Connection")))
+            this.keepAlive = false;
+        return request;
+    }
+
+    /**
+     * Find end of header (double CRLF) in buffered data, continue from last scanned position.
+     * @param available bytes in inbound buffer
+     * @return size of header including double CRLF, -1 if not found yet
+     */
+    private Integer findHeaderEnd(Integer available) {
+        ByteBuffer data = this.inbound;
+        int index = Math.max(this.scanned - 3, 0);
+        for (; index + 3 < available; index++) {
+            if (data.get(index) == '\r' && data.get(index + 1) == '\n'
+                    && data.get(index + 2) == '\r' && data.get(index + 3) == '\n') {
+                this.scanned = 0;
+                return index + 4;
+            }
+        }
+        this.scanned = available;
+        return -1;
+    }
+
+    /**
+     * Drop a served request from head of inbound buffer and keep following data.
+     * @param size of served request
+     */
+    private void consume(Integer size) {
+        this.state = State.HEADER;
+        this.request = null;
+        this.drop(size);
+    }
+
+    /**
+     * Drop data from head of inbound buffer and keep following data.
+     * @param size of data dropped
+     */
+    private void drop(Integer size) {
+        this.inbound.flip().position(size);
+        if (!this.inbound.hasRemaining()) {
+            this.releaseInbound();
+            return;
+        }
+        if (this.inbound.remaining() <= Server.MaxRequestHeaderSize
+                && this.inbound.capacity() > this.pool.capacityOf(Server.MaxRequestHeaderSize)) {
+            ByteBuffer shrinked = this.pool.acquire(Server.MaxRequestHeaderSize);
+            shrinked.put(this.inbound);
+            this.pool.release(this.inbound);
+            this.inbound = shrinked;
+            return;
+        }
+        this.inbound.compact();
+    }
+
+    /**
+     * Replace inbound buffer with a larger one and keep buffered data.
+     * @param capacity of new buffer
+     */
+    private void resize(Integer capacity) {
+        ByteBuffer resized = this.pool.acquire(capacity);
+        resized.put(this.inbound.flip());
+        this.pool.release(this.inbound);
+        this.inbound = resized;
+    }
+}
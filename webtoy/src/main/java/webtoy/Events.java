@@ -0,0 +1,178 @@
+package webtoy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of every phase of serving a request, and of connections.
+ *
+ * Events are disabled unless a recording enables them, like:
+ *
+ *   jcmd <pid> JFR.start name=webtoy settings=profile filename=webtoy.jfr
+ *
+ * Phase events are made and committed on the stack in the usual way of JFR, so they cost
+ * next to nothing while disabled. Events of a connection carry its id for joining phases
+ * of a slow request, handler events carry path of its route.
+ */
+final class Events {
+    private Events() {
+    }
+
+    @Name("webtoy.ConnectionAccept")
+    @Label("Connection Accept")
+    @Category({ "webtoy", "Connection" })
+    @StackTrace(false)
+    static class ConnectionAccept extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Remote Address")
+        String remote;
+    }
+
+    @Name("webtoy.ConnectionClose")
+    @Label("Connection Close")
+    @Category({ "webtoy", "Connection" })
+    @StackTrace(false)
+    static class ConnectionClose extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Remote Address")
+        String remote;
+    }
+
+    @Name("webtoy.SocketRead")
+    @Label("Socket Read")
+    @Description("Read from client socket into inbound buffer")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class SocketRead extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("webtoy.HeaderScan")
+    @Label("Header Scan")
+    @Description("Scan inbound buffer for end of request header")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class HeaderScan extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Bytes Buffered")
+        @DataAmount
+        long bytes;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("webtoy.RequestParse")
+    @Label("Request Parse")
+    @Description("Parse request line and headers")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class RequestParse extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Header Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("webtoy.RouteMatch")
+    @Label("Route Match")
+    @Description("Match path and method of request to a route")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class RouteMatch extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Route")
+        String route;
+    }
+
+    @Name("webtoy.HandlerApply")
+    @Label("Handler Apply")
+    @Description("Call handler of route, for async handlers only until their future returned")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class HandlerApply extends Event {
+        @Label("Route")
+        String route;
+
+        @Label("Status Code")
+        int code;
+    }
+
+    @Name("webtoy.ResponseSerialize")
+    @Label("Response Serialize")
+    @Description("Serialize head and content of response into a buffer")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class ResponseSerialize extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Status Code")
+        int code;
+
+        @Label("Bytes Queued")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("webtoy.ResponseCompress")
+    @Label("Response Compress")
+    @Description("Compress body of response with encoding accepted by client")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class ResponseCompress extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Encoding")
+        String encoding;
+
+        @Label("Body Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Compressed Size")
+        @DataAmount
+        long compressed;
+    }
+
+    @Name("webtoy.SocketWrite")
+    @Label("Socket Write")
+    @Description("Write queued responses to client socket")
+    @Category({ "webtoy", "Phase" })
+    @StackTrace(false)
+    static class SocketWrite extends Event {
+        @Label("Connection")
+        long connection;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+
+        @Label("Drained")
+        boolean drained;
+    }
+}
@@ -0,0 +1,25 @@
+package webtoy;
+
+/**
+ * A request taken from a connection and its response once handler finished.
+ *
+ * Exchanges of a connection are kept in order requests were sent, so responses finished
+ * out of order (by handlers on executor) are still written in order.
+ */
+class Exchange {
+    final Request request;
+
+    // If connection should be closed after this response
+    final Boolean close;
+    Response response;
+
+    // When request was taken, for measuring its latency
+    final long started;
+
+    Exchange(Request request, Boolean close) {
+        this.request = request;
+        this.close = close;
+        this.response = null;
+        this.started = System.nanoTime();
+    }
+}
@@ -0,0 +1,106 @@
+package webtoy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with bounded relative error, in the way of HdrHistogram.
+ *
+ * Values below SubCount have a bucket each, above that every power of two range is split into
+ * SubCount buckets, so a value is only known within 1/SubCount (about 6%) of itself.
+ * Values over MaxValue are counted as MaxValue.
+ *
+ * Recording is a few atomic additions without lock, a histogram is meant to be written by one
+ * thread (like a reactor) for never being contended, but stays correct with more writers.
+ */
+public class Histogram {
+    private static final int SubBits = 4;
+    private static final int SubCount = 1 << SubBits;
+    public static final long MaxValue = (1L << 40) - 1;
+    private static final int Buckets = index(MaxValue) + 1;
+
+    // Counts of buckets, then total count and sum of values
+    private final AtomicLongArray counts;
+
+    public Histogram() {
+        this.counts = new AtomicLongArray(Buckets + 2);
+    }
+
+    /**
+     * Record a value.
+     * @param value to be recorded, negative value is recorded as 0
+     */
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0), MaxValue);
+        this.counts.getAndIncrement(index(value));
+        this.counts.getAndIncrement(Buckets);
+        this.counts.getAndAdd(Buckets + 1, value);
+    }
+
+    /**
+     * Number of values recorded.
+     */
+    public long count() {
+        return this.counts.get(Buckets);
+    }
+
+    /**
+     * Sum of values recorded.
+     */
+    public long sum() {
+        return this.counts.get(Buckets + 1);
+    }
+
+    /**
+     * Add counts of this histogram into another one, for merging histograms recorded by
+     * different threads before reading their quantiles.
+     * @param other histogram to be added into
+     */
+    public void addTo(Histogram other) {
+        for (Integer index = 0; index < Buckets + 2; index++) {
+            long count = this.counts.get(index);
+            if (count != 0)
+                other.counts.getAndAdd(index, count);
+        }
+    }
+
+    /**
+     * Value at given quantile, as the highest value of its bucket.
+     * @param quantile between 0 and 1
+     * @return value which given quantile of recorded values are not larger than, 0 if empty
+     */
+    public long quantile(double quantile) {
+        long count = this.count();
+        if (count == 0)
+            return 0;
+        long rank = Math.max((long) Math.ceil(quantile * count), 1);
+        long seen = 0;
+        for (Integer index = 0; index < Buckets; index++) {
+            seen += this.counts.get(index);
+            if (seen >= rank)
+                return highest(index);
+        }
+        return MaxValue;
+    }
+
+    /**
+     * Bucket of value, see description of Histogram.
+     */
+    private static int index(long value) {
+        if (value < SubCount)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SubBits;
+        return SubCount + shift * SubCount + (int) ((value >>> shift) - SubCount);
+    }
+
+    /**
+     * Highest value falling into given bucket.
+     */
+    private static long highest(Integer index) {
+        if (index < SubCount)
+            return index;
+        Integer shift = (index - SubCount) / SubCount;
+        long sub = (index - SubCount) % SubCount + SubCount;
+        return ((sub + 1) << shift) - 1;
+    }
+}
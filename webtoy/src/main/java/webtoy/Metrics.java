@@ -0,0 +1,233 @@
+package webtoy;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * Request metrics of a server, exposed in Prometheus text format.
+ *
+ * Every reactor records into its own shard, so reactors never contend with each other;
+ * shards are only merged when metrics are read. Recorded for every response written:
+ *
+ *   webtoy_requests_total{code}           responses by status code
+ *   webtoy_request_duration_seconds{route} summary of time from request parsed to response queued
+ *   webtoy_received_bytes_total            bytes of requests
+ *   webtoy_sent_bytes_total                bytes of responses
+ *   webtoy_connections                     connections currently open
+ *   webtoy_connection_timeouts_total{timeout} connections closed by each timeout
+ *   webtoy_connections_rejected_total{limit}  connections closed at once for a limit
+ *
+ * Requests matching no route, or rejected before routed, are recorded with route "unmatched".
+ * Metrics could be served by registering their handler on a route:
+ *
+ *   app.route("/metrics", server.metrics.handler());
+ */
+public class Metrics {
+    public static final String Unmatched = "unmatched";
+    public static final String ContentType = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] Quantiles = { 0.5, 0.9, 0.99, 0.999 };
+    private static final Integer MaxCode = 600;
+
+    /**
+     * Metrics recorded by a single reactor.
+     */
+    static class Shard {
+        private final AtomicLongArray codes = new AtomicLongArray(MaxCode);
+        private final AtomicLongArray bytes = new AtomicLongArray(2);
+        private final Map<String, Histogram> routes = new ConcurrentHashMap<>();
+        private final AtomicLongArray timeouts = new AtomicLongArray(Server.Timeout.values().length);
+
+        /**
+         * Record a response written.
+         * @param route matched by request, null if request matched no route
+         * @param code of response
+         * @param received bytes of request
+         * @param sent bytes of response
+         * @param nanos between request parsed and response queued
+         */
+        void record(Route route, Integer code, long received, long sent, long nanos) {
+            if (code >= 0 && code < MaxCode)
+                this.codes.getAndIncrement(code);
+            this.bytes.getAndAdd(0, received);
+            this.bytes.getAndAdd(1, sent);
+            String path = route == null ? Unmatched : route.path;
+            Histogram histogram = this.routes.get(path);
+            if (histogram == null)
+                histogram = this.routes.computeIfAbsent(path, key -> new Histogram());
+            histogram.record(nanos);
+        }
+
+        /**
+         * Record a connection closed by timeout.
+         */
+        void timeout(Server.Timeout timeout) {
+            this.timeouts.getAndIncrement(timeout.ordinal());
+        }
+    }
+
+    private final Shard[] shards;
+    private final IntSupplier connections;
+    private final AtomicLongArray rejections;
+
+    /**
+     * Make metrics with a shard for every reactor.
+     * @param shards count, one for every recording thread
+     * @param connections supplier of connections currently open
+     */
+    Metrics(Integer shards, IntSupplier connections) {
+        this.shards = new Shard[shards];
+        for (Integer index = 0; index < shards; index++)
+            this.shards[index] = new Shard();
+        this.connections = connections;
+        this.rejections = new AtomicLongArray(Server.Limit.values().length);
+    }
+
+    /**
+     * Shard recorded by reactor of given index.
+     */
+    Shard shard(Integer index) {
+        return this.shards[index];
+    }
+
+    /**
+     * Record a connection closed at once for a limit, called by acceptor.
+     */
+    void reject(Server.Limit limit) {
+        this.rejections.getAndIncrement(limit.ordinal());
+    }
+
+    /**
+     * Number of connections closed by given timeout.
+     */
+    public long timeouts(Server.Timeout timeout) {
+        long count = 0;
+        for (Shard shard : this.shards)
+            count += shard.timeouts.get(timeout.ordinal());
+        return count;
+    }
+
+    /**
+     * Number of connections closed at once for given limit.
+     */
+    public long rejected(Server.Limit limit) {
+        return this.rejections.get(limit.ordinal());
+    }
+
+    /**
+     * Number of responses with given status code.
+     */
+    public long requests(Integer code) {
+        long count = 0;
+        for (Shard shard : this.shards)
+            count += shard.codes.get(code);
+        return count;
+    }
+
+    /**
+     * Bytes of all requests received.
+     */
+    public long received() {
+        long bytes = 0;
+        for (Shard shard : this.shards)
+            bytes += shard.bytes.get(0);
+        return bytes;
+    }
+
+    /**
+     * Bytes of all responses sent.
+     */
+    public long sent() {
+        long bytes = 0;
+        for (Shard shard : this.shards)
+            bytes += shard.bytes.get(1);
+        return bytes;
+    }
+
+    /**
+     * Latency in nanoseconds of every route merged from all shards.
+     * @return histograms keyed by path of route, sorted by path
+     */
+    public Map<String, Histogram> latencies() {
+        Map<String, Histogram> merged = new TreeMap<>();
+        for (Shard shard : this.shards)
+            for (Map.Entry<String, Histogram> entry : shard.routes.entrySet())
+                entry.getValue().addTo(merged.computeIfAbsent(entry.getKey(), key -> new Histogram()));
+        return merged;
+    }
+
+    /**
+     * Render all metrics in Prometheus text exposition format.
+     * @return text of metrics
+     */
+    public String prometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP webtoy_requests_total Responses by status code.\n");
+        text.append("# TYPE webtoy_requests_total counter\n");
+        for (Integer code = 0; code < MaxCode; code++) {
+            long count = this.requests(code);
+            if (count > 0)
+                text.append("webtoy_requests_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+        }
+
+        text.append("# HELP webtoy_request_duration_seconds Time from request parsed to response queued.\n");
+        text.append("# TYPE webtoy_request_duration_seconds summary\n");
+        for (Map.Entry<String, Histogram> entry : this.latencies().entrySet()) {
+            String route = escape(entry.getKey());
+            Histogram histogram = entry.getValue();
+            for (double quantile : Quantiles)
+                text.append("webtoy_request_duration_seconds{route=\"").append(route)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.quantile(quantile))).append('\n');
+            text.append("webtoy_request_duration_seconds_sum{route=\"").append(route).append("\"} ")
+                    .append(seconds(histogram.sum())).append('\n');
+            text.append("webtoy_request_duration_seconds_count{route=\"").append(route).append("\"} ")
+                    .append(histogram.count()).append('\n');
+        }
+
+        text.append("# HELP webtoy_received_bytes_total Bytes of requests received.\n");
+        text.append("# TYPE webtoy_received_bytes_total counter\n");
+        text.append("webtoy_received_bytes_total ").append(this.received()).append('\n');
+        text.append("# HELP webtoy_sent_bytes_total Bytes of responses sent.\n");
+        text.append("# TYPE webtoy_sent_bytes_total counter\n");
+        text.append("webtoy_sent_bytes_total ").append(this.sent()).append('\n');
+        text.append("# HELP webtoy_connections Client connections currently open.\n");
+        text.append("# TYPE webtoy_connections gauge\n");
+        text.append("webtoy_connections ").append(this.connections.getAsInt()).append('\n');
+        text.append("# HELP webtoy_connection_timeouts_total Connections closed by timeout.\n");
+        text.append("# TYPE webtoy_connection_timeouts_total counter\n");
+        for (Server.Timeout timeout : Server.Timeout.values())
+            text.append("webtoy_connection_timeouts_total{timeout=\"").append(timeout.name().toLowerCase())
+                    .append("\"} ").append(this.timeouts(timeout)).append('\n');
+        text.append("# HELP webtoy_connections_rejected_total Connections closed at once for a limit.\n");
+        text.append("# TYPE webtoy_connections_rejected_total counter\n");
+        for (Server.Limit limit : Server.Limit.values())
+            text.append("webtoy_connections_rejected_total{limit=\"").append(limit.name().toLowerCase())
+                    .append("\"} ").append(this.rejected(limit)).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Handler responding metrics in Prometheus text format.
+     * @return handler to be registered on a route
+     */
+    public Handler handler() {
+        return request -> {
+            Response response = new Response(this.prometheus());
+            response.headers.put("Content-Type", ContentType);
+            return response;
+        };
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
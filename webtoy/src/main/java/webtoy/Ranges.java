@@ -0,0 +1,81 @@
+package webtoy;
+
+import java.util.Arrays;
+
+/**
+ * Parsing of Range and If-Range request headers (RFC 7233), for answering GET requests
+ * of byte and file responses with parts of their body.
+ *
+ * Only "bytes" ranges are supported. A Range header which could not be parsed, or asks
+ * for more than MaxRanges ranges, is ignored and whole body is sent, as RFC allows.
+ */
+final class Ranges {
+    static final Integer MaxRanges = 16;
+
+    private Ranges() {
+    }
+
+    /**
+     * Ranges of body asked by Range header.
+     * @param header value of Range
+     * @param length of whole body
+     * @return first and last byte of every satisfiable range in pairs, empty if none is
+     *         satisfiable, null if header should be ignored
+     */
+    static long[] parse(String header, long length) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MaxRanges)
+            return null;
+        long[] ranges = new long[specs.length * 2];
+        Integer count = 0;
+        for (String spec : specs) {
+            spec = spec.strip();
+            Integer dash = spec.indexOf('-');
+            if (dash == -1)
+                return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0 || length == 0)
+                        continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash).strip());
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1).strip());
+                    if (first < 0 || last < first)
+                        return null;
+                    if (first >= length)
+                        continue;
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException error) {
+                return null;
+            }
+            ranges[count++] = first;
+            ranges[count++] = last;
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * If response is still the version client has, so ranges asked should be sent.
+     * @param ifRange value of If-Range, could be null
+     * @param response whose ETag or Last-Modified is compared
+     * @return true if ranges should be sent, false if whole body should be sent
+     */
+    static Boolean current(String ifRange, Response response) {
+        if (ifRange == null)
+            return true;
+        ifRange = ifRange.strip();
+        if (ifRange.startsWith("W/"))
+            return false;
+        if (ifRange.startsWith("\""))
+            return ifRange.equals(response.headers.get("ETag"));
+        return ifRange.equals(response.headers.get("Last-Modified"));
+    }
+}
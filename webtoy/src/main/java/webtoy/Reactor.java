@@ -0,0 +1,939 @@
+package webtoy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A worker event loop owning its own Selector and set of client connections.
+ *
+ * Server accepts connections on a single acceptor thread and hands every accepted
+ * SocketChannel to one of its reactors, after that all reading, parsing, responding
+ * and writing of this connection happen on the reactor thread only.
+ *
+ * Channels handed over from acceptor are queued and registered by reactor itself,
+ * because registering on a Selector blocked in select() from another thread would block.
+ * In the same way, responses finished by handlers on other threads are handed back
+ * as tasks executed on reactor thread.
+ *
+ * Every connection has at most one timeout armed, chosen by what it is waiting for
+ * (see Server.Timeout), on a timer wheel driven by select of reactor itself.
+ */
+class Reactor implements Runnable, Executor {
+    private static final ByteBuffer ConnectionClose = ByteBuffer
+            .wrap("Connection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    private static final ByteBuffer ChunkEnd = ByteBuffer
+            .wrap("\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    private static final ByteBuffer LastChunk = ByteBuffer
+            .wrap("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+    // Timeouts are checked every tick, a wheel of slots turns once every 51.2 seconds
+    private static final long TimerTick = Duration.ofMillis(100).toNanos();
+    private static final Integer TimerSlots = 512;
+
+    private final Server server;
+    private final Selector selector;
+    private final Set<Connection> connections;
+    private final BufferPool pool;
+    private final Metrics.Shard metrics;
+    private final Queue<Connection> registrations;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger load;
+    private final TimerWheel timers;
+    private final Thread thread;
+    private volatile Boolean status;
+    private Compressor compressor;
+
+    Reactor(Server server, Integer index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.connections = new HashSet<>();
+        this.pool = new BufferPool(Server.MaxPooledBufferSize, Server.MaxPooledBytes, Server.DirectBuffers);
+        this.metrics = server.metrics.shard(index);
+        this.registrations = new ConcurrentLinkedQueue<>();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.load = new AtomicInteger();
+        this.timers = new TimerWheel(TimerTick, TimerSlots, System.nanoTime());
+        this.thread = new Thread(this, String.format("webtoy-reactor-%d", index));
+        this.status = false;
+    }
+
+    /**
+     * Start reactor thread.
+     */
+    void start() {
+        this.status = true;
+        this.thread.start();
+    }
+
+    /**
+     * Hand over an accepted client to this reactor, could be called from any thread.
+     * @param connection of client accepted by server in non-blocking mode
+     */
+    void register(Connection connection) {
+        this.load.incrementAndGet();
+        this.registrations.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on reactor thread, could be called from any thread.
+     * @param task to be run after current select
+     */
+    @Override
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Number of connections handed to this reactor and not yet closed.
+     * @return current load of reactor
+     */
+    Integer load() {
+        return this.load.get();
+    }
+
+    /**
+     * Stop reactor loop, wait until it exits and all of its connections are closed.
+     */
+    void close() {
+        this.status = false;
+        this.selector.wakeup();
+        if (this.thread.isAlive() && Thread.currentThread() != this.thread) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!this.thread.isAlive())
+            this.shutdown();
+    }
+
+    /**
+     * Waiting events from selector until reactor closed.
+     */
+    @Override
+    public void run() {
+        while (this.status) {
+            try {
+                this.selector.select(this.timers.timeout(System.nanoTime()));
+            } catch (ClosedSelectorException error) {
+                break;
+            } catch (IOException error) {
+                break;
+            }
+            this.registerPending();
+            this.runTasks();
+
+            Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
+            Iterator<SelectionKey> iter = selectedKeys.iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                try {
+                    // Continue writing responses, then serve requests buffered while congested
+                    if (key.isValid() && key.isWritable())
+                        this.process(key);
+
+                    // Serving client's request
+                    if (key.isValid() && key.isReadable())
+                        this.serve(key);
+                } catch (IOException error) {
+                    this.disconnectClient(key);
+                }
+            }
+            this.timers.expire(System.nanoTime(), this::expire);
+        }
+        this.shutdown();
+    }
+
+    /**
+     * Run all tasks handed over from other threads since last select.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null)
+            task.run();
+    }
+
+    /**
+     * Register all clients handed over from acceptor since last select.
+     */
+    private void registerPending() {
+        Connection connection;
+        while ((connection = this.registrations.poll()) != null) {
+            SocketChannel client = connection.channel;
+            try {
+                connection.key = client.register(this.selector, SelectionKey.OP_READ, connection);
+                this.connections.add(connection);
+                if (Server.HeaderTimeout != null)
+                    this.timers.schedule(connection, Server.Timeout.HEADER,
+                            System.nanoTime() + Server.HeaderTimeout.toNanos());
+                Events.ConnectionAccept event = new Events.ConnectionAccept();
+                if (event.shouldCommit()) {
+                    event.connection = connection.id;
+                    event.remote = connection.remote();
+                    event.commit();
+                }
+            } catch (IOException error) {
+                this.load.decrementAndGet();
+                this.server.release(connection.address);
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                    // Do nothing here
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all connections owned by this reactor and its selector.
+     */
+    private synchronized void shutdown() {
+        Connection pending;
+        while ((pending = this.registrations.poll()) != null) {
+            try {
+                pending.channel.close();
+            } catch (IOException error) {
+                // Do nothing here
+            }
+            this.server.release(pending.address);
+        }
+        for (Connection connection : this.connections) {
+            try {
+                connection.channel.close();
+            } catch (IOException error) {
+                // Do nothing here
+            }
+            this.timers.cancel(connection);
+            connection.release();
+            this.server.release(connection.address);
+        }
+        this.connections.clear();
+        this.load.set(0);
+        if (this.compressor != null) {
+            this.compressor.close();
+            this.compressor = null;
+        }
+        try {
+            this.selector.close();
+        } catch (IOException error) {
+            return;
+        }
+    }
+
+    /**
+     * Serve requests from client.
+     *
+     * Here using CRLF = "\r\n";
+     *
+     * Read data from client socket into buffer of its connection, the header should contain:
+     * **request line, headers, CRLF**, and it must be found in first MaxRequestHeaderSize bytes,
+     * otherwise we throw an HTTP 431 (request header is too large) to client and close connection.
+     *
+     * Body size of request is indicated by Content-Length header in request,
+     * if data of a request is not complete, it stays in buffer and waits for next read.
+     *
+     * Client could send multiple requests without waiting responses (pipelining),
+     * so all complete requests in buffer are served, and responses are written in same order.
+     * Connection is closed after responding a request which asked "Connection: close".
+     *
+     * @param key is select key contains socket channel from client
+     */
+    private void serve(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+
+        // If client closed connection, still write responses already queued
+        if (connection.read() == -1) {
+            connection.closeAfterWrite();
+            this.flush(key);
+            return;
+        }
+        this.process(key);
+    }
+
+    /**
+     * Respond all complete requests buffered in connection, until it is congested.
+     *
+     * Every request is handed to application, responses finished on reactor thread are
+     * queued at once, others are queued when finish() runs on reactor thread later.
+     *
+     * @param key is select key contains socket channel from client
+     */
+    private void process(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        try {
+            // Body being streamed is received even while no more requests are taken
+            connection.feed();
+            Request request;
+            while (connection.keepAlive() && !connection.congested()
+                    && (request = connection.next(this.server.application)) != null) {
+                if (request.stream != null)
+                    request.stream.resume(() -> this.execute(() -> this.resume(connection)));
+
+                // Application handle this request and generate response
+                Exchange exchange = connection.begin(request);
+                Admission admission = this.server.admission;
+                if (admission == null) {
+                    this.server.application.respond(request, response -> this.complete(connection, exchange, response));
+                    continue;
+                }
+                // Rejected requests are answered in order like others, without calling handler
+                Response rejected = admission.admit(connection.address);
+                if (rejected != null) {
+                    exchange.response = rejected;
+                    continue;
+                }
+                this.server.application.respond(request, response -> {
+                    admission.release(System.nanoTime() - exchange.started);
+                    this.complete(connection, exchange, response);
+                });
+            }
+        } catch (Connection.RequestRejected error) {
+            // Written by drain after responses of requests before it, like any response
+            connection.reject(error);
+        }
+        this.drain(connection);
+        this.flush(key);
+    }
+
+    /**
+     * Set response of an exchange, called on the thread which finished handler.
+     * @param connection request taken from
+     * @param exchange of request
+     * @param response generated by application
+     */
+    private void complete(Connection connection, Exchange exchange, Response response) {
+        if (Thread.currentThread() == this.thread) {
+            exchange.response = response;
+            return;
+        }
+        this.execute(() -> this.finish(connection, exchange, response));
+    }
+
+    /**
+     * Set response of an exchange finished on another thread and write it, then serve
+     * requests which were waiting because connection had too many requests being handled.
+     */
+    private void finish(Connection connection, Exchange exchange, Response response) {
+        if (connection.closed())
+            return;
+        exchange.response = response;
+        try {
+            this.process(connection.key);
+        } catch (IOException error) {
+            this.disconnectClient(connection.key);
+        }
+    }
+
+    /**
+     * Read from client again once handler caught up with body being streamed.
+     */
+    private void resume(Connection connection) {
+        if (connection.closed())
+            return;
+        try {
+            this.process(connection.key);
+        } catch (IOException error) {
+            this.disconnectClient(connection.key);
+        }
+    }
+
+    /**
+     * Queue responses of finished exchanges at head of connection in order, then canned
+     * response of a rejected request once no exchange is left before it.
+     * @param connection whose exchanges should be drained
+     */
+    private void drain(Connection connection) {
+        Exchange exchange;
+        while ((exchange = connection.complete()) != null) {
+            Response response = exchange.response;
+            // Handler could write the same response again, so header is put on a copy
+            if (exchange.close && response.serialized() == null) {
+                response = response.copy();
+                response.headers.put("Connection", "close");
+            }
+            Request request = exchange.request;
+            long sent = this.enqueue(connection, request, response, exchange.close);
+            // Handler is done with body, what is left of it is dropped as it arrives
+            if (request.stream != null)
+                request.stream.close();
+            // Body of streamed response follows its head, later responses wait until it ends
+            if (response.publisher() != null) {
+                connection.responding = new ChunkedResponse(connection, exchange, sent);
+                response.publisher().subscribe(connection.responding);
+                return;
+            }
+            this.metrics.record(request.route, response.code, request.size(), sent,
+                    System.nanoTime() - exchange.started);
+            this.log(connection, request, response.code, sent);
+        }
+        Connection.RequestRejected rejected = connection.rejection();
+        if (rejected != null) {
+            ByteBuffer response = rejected.response.duplicate();
+            Integer received = rejected.request == null ? 0 : rejected.request.size();
+            this.metrics.record(null, rejected.code, received, response.remaining(), 0);
+            this.log(connection, rejected.request, rejected.code, response.remaining());
+            connection.enqueue(response, false);
+        }
+    }
+
+    /**
+     * Write queued responses of connection, then choose events it should wait for.
+     *
+     * Wait for OP_WRITE while responses are left in queue, and for OP_READ unless connection
+     * is congested or closing, or while a body is streamed and its handler keeps up with it.
+     * Closing connection is disconnected once all responses written. A response being
+     * streamed is asked for its next chunk once queue is short enough.
+     * Timeout of connection is armed again for what it is waiting for after that.
+     *
+     * @param key is select key contains socket channel from client
+     */
+    private void flush(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        long queued = connection.outbound();
+        Boolean drained = connection.flush();
+        if (connection.responding != null)
+            connection.responding.pull();
+        if (drained && !connection.keepAlive() && connection.idle()) {
+            this.disconnectClient(key);
+            return;
+        }
+        this.arm(connection, drained, connection.outbound() < queued);
+        Integer interests = 0;
+        if (!drained)
+            interests |= SelectionKey.OP_WRITE;
+        if (connection.keepAlive() && !connection.congested() || connection.streaming())
+            interests |= SelectionKey.OP_READ;
+        key.interestOps(interests);
+    }
+
+    /**
+     * Disconnect client socket connection and cancel listen on given key.
+     * @param key of current event from selector
+     */
+    private void disconnectClient(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        Events.ConnectionClose event = new Events.ConnectionClose();
+        if (event.isEnabled())
+            connection.remote();
+        this.timers.cancel(connection);
+
+        // Stop counting connection before closing it, so client could connect again at once
+        Boolean owned = this.connections.remove(connection);
+        if (owned) {
+            this.load.decrementAndGet();
+            this.server.release(connection.address);
+        }
+        try {
+            key.cancel();
+            connection.channel.close();
+        } catch (IOException error) {
+            // Do nothing here
+        }
+        if (owned) {
+            connection.release();
+            if (event.shouldCommit()) {
+                event.connection = connection.id;
+                event.remote = connection.remote();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Arm timeout of connection for what it is waiting for.
+     *
+     * Timeouts of header and body run from first byte of header and from end of header,
+     * and are not extended by following reads, so a client sending a byte now and then
+     * could not hold connection. Write timeout is extended whenever client reads anything.
+     * No timeout is armed while handlers of connection are running, unless a body is streamed
+     * to a handler keeping up with it. A new connection has
+     * header timeout armed until its first request starts.
+     *
+     * @param connection just flushed or registered
+     * @param drained if all queued responses are written
+     * @param progressed if any queued bytes are written in last flush
+     */
+    private void arm(Connection connection, Boolean drained, Boolean progressed) {
+        Server.Timeout timeout = null;
+        if (!drained)
+            timeout = Server.Timeout.WRITE;
+        else if (connection.idle())
+            timeout = connection.receiving() != null ? connection.receiving() : Server.Timeout.IDLE;
+        else if (connection.streaming())
+            timeout = Server.Timeout.BODY;
+        Duration duration = timeout == null ? null : switch (timeout) {
+            case HEADER -> Server.HeaderTimeout;
+            case BODY -> Server.BodyTimeout;
+            case IDLE -> Server.IdleTimeout;
+            case WRITE -> Server.WriteTimeout;
+        };
+        if (duration == null) {
+            this.timers.cancel(connection);
+            return;
+        }
+        if (connection.timeout == timeout && !(timeout == Server.Timeout.WRITE && progressed))
+            return;
+        this.timers.schedule(connection, timeout, System.nanoTime() + duration.toNanos());
+    }
+
+    /**
+     * Close a connection whose timeout expired, a client which sent part of a request
+     * is answered with 408 before closed.
+     * @param connection timed out
+     * @param timeout what connection was waiting for
+     */
+    private void expire(Connection connection, Server.Timeout timeout) {
+        this.metrics.timeout(timeout);
+        // A handler reading body being streamed could not be answered before
+        if (timeout == Server.Timeout.BODY && !connection.idle()) {
+            this.disconnectClient(connection.key);
+            return;
+        }
+        if (timeout == Server.Timeout.BODY || timeout == Server.Timeout.HEADER && connection.receiving() != null) {
+            ByteBuffer response = Response.RequestTimeoutResponse.duplicate();
+            this.metrics.record(null, 408, 0, response.remaining(), 0);
+            this.log(connection, null, 408, response.remaining());
+            connection.enqueue(response, false);
+            connection.closeAfterWrite();
+            try {
+                this.flush(connection.key);
+            } catch (IOException error) {
+                this.disconnectClient(connection.key);
+            }
+            return;
+        }
+        this.disconnectClient(connection.key);
+    }
+
+    /**
+     * Serialize response into pooled buffer and queue it on connection.
+     *
+     * Response with String content is serialized into one buffer, while raw body of response
+     * made with bytes is queued as it is after its head, without being copied.
+     *
+     * Frozen response is queued as it is, a Connection header is put between its head and
+     * body if connection should be closed.
+     *
+     * Response which could be compressed is compressed if client accepts it, see Compression.
+     * Body of file response is sent from file with transferTo, see Connection.
+     *
+     * GET request with Range header of a byte or file response is answered with ranges
+     * asked (see Ranges), sent as slices of body or regions of file without copying.
+     *
+     * @param connection response would be written to
+     * @param request of response
+     * @param response to be queued
+     * @param close if connection is closed after response
+     * @return bytes queued
+     */
+    private long enqueue(Connection connection, Request request, Response response, Boolean close) {
+        if (request.method == HTTPMethod.GET && response.code == 200 && request.header("Range") != null
+                && (response.body() != null || response.file() != null)
+                && Ranges.current(request.header("If-Range"), response)) {
+            long[] ranges = Ranges.parse(request.header("Range"), response.length());
+            if (ranges != null)
+                return this.enqueueRanges(connection, response, close, ranges);
+        }
+        Compression compression = this.server.compression;
+        if (compression != null && compression.compressible(response))
+            return this.enqueueCompressible(connection, request, response, close, compression);
+        if (response.serialized() != null)
+            return this.enqueueSerialized(connection, response, close);
+        if (response.file() != null)
+            return this.enqueueFile(connection, response);
+        return this.serialize(connection, response, null);
+    }
+
+    /**
+     * Queue a frozen response as it is, with a Connection header put between its head and
+     * body if connection should be closed.
+     */
+    private long enqueueSerialized(Connection connection, Response response, Boolean close) {
+        ByteBuffer serialized = response.serialized();
+        long bytes = serialized.remaining();
+        if (!close) {
+            connection.enqueue(serialized, false);
+            return bytes;
+        }
+        Integer length = (int) response.length();
+        Integer head = serialized.remaining() - length;
+        connection.enqueue(serialized.slice(0, head - 2), false);
+        connection.enqueue(ConnectionClose.duplicate(), false);
+        connection.enqueue(serialized.slice(head, length), false);
+        return bytes + ConnectionClose.remaining() - 2;
+    }
+
+    /**
+     * Serialize head of file response and queue region of its file after head.
+     *
+     * If file could not be opened anymore (like deleted after handler found it),
+     * a 404 response is queued instead.
+     */
+    private long enqueueFile(Connection connection, Response response) {
+        FileChannel file;
+        try {
+            file = FileChannel.open(response.file());
+        } catch (IOException error) {
+            return this.serialize(connection, new Response(404), null);
+        }
+        long bytes = this.serialize(connection, response, null);
+        if (response.length() > 0)
+            connection.enqueue(file, response.position(), response.length(), true);
+        else
+            this.close(file);
+        return bytes + response.length();
+    }
+
+    /**
+     * Queue ranges of body of a byte or file response as a 206 response, or a 416 response
+     * if no range is satisfiable. A single range is sent as body, multiple ranges are sent
+     * as parts of a multipart/byteranges body.
+     * @param ranges first and last byte of every range in pairs
+     */
+    private long enqueueRanges(Connection connection, Response response, Boolean close, long[] ranges) {
+        long length = response.length();
+        if (ranges.length == 0) {
+            Response unsatisfiable = new Response(416);
+            unsatisfiable.headers.put("Content-Range", "bytes */" + length);
+            if (close)
+                unsatisfiable.headers.put("Connection", "close");
+            return this.serialize(connection, unsatisfiable, null);
+        }
+        if (ranges.length == 2) {
+            long first = ranges[0];
+            long count = ranges[1] - ranges[0] + 1;
+            Response partial = response.file() != null
+                    ? new Response(206, response.file(), response.position() + first, count)
+                    : new Response(206, response.body().slice().slice((int) first, (int) count));
+            partial.headers.putAll(response.headers);
+            partial.headers.put("Content-Range", String.format("bytes %d-%d/%d", ranges[0], ranges[1], length));
+            if (close)
+                partial.headers.put("Connection", "close");
+            if (partial.file() != null)
+                return this.enqueueFile(connection, partial);
+            return this.serialize(connection, partial, null);
+        }
+
+        FileChannel file = null;
+        if (response.file() != null) {
+            try {
+                file = FileChannel.open(response.file());
+            } catch (IOException error) {
+                return this.serialize(connection, new Response(404), null);
+            }
+        }
+        String boundary = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        String type = response.headers.getOrDefault("Content-Type", Response.DefaultContentType);
+        ByteBuffer[] parts = new ByteBuffer[ranges.length / 2 + 1];
+        long total = 0;
+        for (Integer index = 0; index < ranges.length; index += 2) {
+            String part = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: bytes %d-%d/%d\r\n\r\n",
+                    boundary, type, ranges[index], ranges[index + 1], length);
+            parts[index / 2] = ByteBuffer.wrap(part.getBytes(StandardCharsets.US_ASCII));
+            total += parts[index / 2].remaining() + ranges[index + 1] - ranges[index] + 1;
+        }
+        parts[parts.length - 1] = ByteBuffer.wrap(String.format("\r\n--%s--\r\n", boundary)
+                .getBytes(StandardCharsets.US_ASCII));
+        total += parts[parts.length - 1].remaining();
+
+        Response multipart = Response.head(206, total);
+        for (Map.Entry<String, String> header : response.headers.entrySet())
+            if (!header.getKey().equals("Content-Type") && !header.getKey().equals("Content-Encoding"))
+                multipart.headers.put(header.getKey(), header.getValue());
+        multipart.headers.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        if (close)
+            multipart.headers.put("Connection", "close");
+        ByteBuffer head = this.pool.acquire(multipart.headSize());
+        multipart.writeHead(head);
+        connection.enqueue(head.flip(), true);
+        long bytes = head.remaining() + total;
+        // Ranges count from position of body, which handler may have left after 0
+        ByteBuffer body = response.body() == null ? null : response.body().slice();
+        for (Integer index = 0; index < ranges.length; index += 2) {
+            connection.enqueue(parts[index / 2], false);
+            long first = ranges[index];
+            long count = ranges[index + 1] - ranges[index] + 1;
+            if (file != null)
+                connection.enqueue(file, response.position() + first, count, index == ranges.length - 2);
+            else
+                connection.enqueue(body.slice((int) first, (int) count), false);
+        }
+        connection.enqueue(parts[parts.length - 1], false);
+        return bytes;
+    }
+
+    private void close(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException error) {
+            // Do nothing here
+        }
+    }
+
+    /**
+     * Compress body of response with encoding accepted by client and queue it.
+     *
+     * Body is compressed into a pooled buffer released after written, and sent as it is if
+     * client accepts no encoding or it could not be made smaller. A frozen response keeps
+     * the variant it made frozen, so later clients get it queued as it is like serialized()
+     * (see Compression.precompress for compressed variants).
+     */
+    private long enqueueCompressible(Connection connection, Request request, Response response, Boolean close,
+            Compression compression) {
+        String encoding = Compression.negotiate(request.header("Accept-Encoding"));
+        Boolean frozen = response.serialized() != null;
+        Response variant = frozen ? response.variant(encoding) : null;
+        if (variant != null)
+            return this.enqueueSerialized(connection, variant, close);
+        ByteBuffer pooled = null;
+        if (encoding != null) {
+            Events.ResponseCompress event = new Events.ResponseCompress();
+            event.begin();
+            pooled = this.compressor(compression).compress(response, encoding);
+            if (event.shouldCommit()) {
+                event.connection = connection.id;
+                event.encoding = encoding;
+                event.bytes = response.length();
+                event.compressed = pooled.remaining();
+                event.commit();
+            }
+            if (pooled.remaining() >= response.length()) {
+                this.pool.release(pooled);
+                pooled = null;
+            }
+        }
+        if (frozen && (pooled == null || compression.precompress())) {
+            ByteBuffer compressed = null;
+            if (pooled != null) {
+                compressed = ByteBuffer.allocate(pooled.remaining()).put(pooled).flip();
+                this.pool.release(pooled);
+            }
+            variant = response.encode(encoding, compressed).freeze();
+            response.variant(compressed == null ? null : encoding, variant);
+            // Encoding which could not make body smaller is answered with plain variant
+            if (compressed == null && encoding != null && compression.precompress())
+                response.variant(encoding, variant);
+            return this.enqueueSerialized(connection, variant, close);
+        }
+        Response encoded = response.encode(encoding, pooled);
+        if (close)
+            encoded.headers.put("Connection", "close");
+        return this.serialize(connection, encoded, pooled);
+    }
+
+    /**
+     * Serialize head of response, with its String content if it has, into a pooled buffer.
+     * Raw body is queued after head, body of file response is left for caller.
+     * @param connection response would be written to
+     * @param response to be queued
+     * @param pooled body of response acquired from pool, queued in place of its body
+     * @return bytes queued
+     */
+    private long serialize(Connection connection, Response response, ByteBuffer pooled) {
+        Events.ResponseSerialize event = new Events.ResponseSerialize();
+        event.begin();
+        ByteBuffer body = response.body();
+        Boolean inline = body == null && response.file() == null;
+        Integer size = response.headSize();
+        if (inline)
+            size += (int) response.length();
+        ByteBuffer buffer = this.pool.acquire(size);
+        response.writeHead(buffer);
+        if (inline)
+            response.writeBody(buffer);
+        connection.enqueue(buffer.flip(), true);
+        long bytes = buffer.remaining();
+        if (pooled != null) {
+            bytes += pooled.remaining();
+            connection.enqueue(pooled, true);
+        } else if (body != null && response.length() > 0) {
+            bytes += body.remaining();
+            connection.enqueue(body, false);
+        }
+        if (event.shouldCommit()) {
+            event.connection = connection.id;
+            event.code = response.code;
+            event.bytes = bytes;
+            event.commit();
+        }
+        return bytes;
+    }
+
+    /**
+     * Compressor of this reactor, made again if level of compression changed.
+     */
+    private Compressor compressor(Compression compression) {
+        if (this.compressor == null || !this.compressor.level.equals(compression.level())) {
+            if (this.compressor != null)
+                this.compressor.close();
+            this.compressor = new Compressor(compression.level(), this.pool);
+        }
+        return this.compressor;
+    }
+
+    /**
+     * Subscriber sending body of a streamed response in chunks, all of its work is done on
+     * reactor thread. One chunk is requested at a time, and only while data queued on
+     * connection is less than Server.MaxOutboundBytes, so a slow client holds back publisher.
+     *
+     * Once body ends, last chunk is queued and requests waiting behind response are served.
+     * If publisher fails, connection is closed without last chunk.
+     */
+    class ChunkedResponse implements Flow.Subscriber<ByteBuffer> {
+        private final Connection connection;
+        private final Exchange exchange;
+        private long sent;
+        private Flow.Subscription subscription;
+        private Boolean requested;
+        private Boolean cancelled;
+
+        ChunkedResponse(Connection connection, Exchange exchange, long sent) {
+            this.connection = connection;
+            this.exchange = exchange;
+            this.sent = sent;
+            this.subscription = null;
+            this.requested = false;
+            this.cancelled = false;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            Reactor.this.execute(() -> {
+                if (this.cancelled) {
+                    subscription.cancel();
+                    return;
+                }
+                this.subscription = subscription;
+                this.pull();
+            });
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            Reactor.this.execute(() -> this.write(chunk));
+        }
+
+        @Override
+        public void onComplete() {
+            Reactor.this.execute(this::end);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            Reactor.this.execute(this::fail);
+        }
+
+        /**
+         * Request next chunk unless one is requested or client is behind.
+         */
+        void pull() {
+            if (this.subscription == null || this.requested || this.cancelled
+                    || this.connection.outbound() >= Server.MaxOutboundBytes)
+                return;
+            this.requested = true;
+            this.subscription.request(1);
+        }
+
+        /**
+         * Stop publisher, called once connection is released.
+         */
+        void cancel() {
+            this.cancelled = true;
+            if (this.subscription != null)
+                this.subscription.cancel();
+        }
+
+        private void write(ByteBuffer chunk) {
+            if (this.cancelled)
+                return;
+            this.requested = false;
+            if (chunk.hasRemaining()) {
+                ByteBuffer size = ByteBuffer.wrap((Integer.toHexString(chunk.remaining()) + "\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                this.sent += size.remaining() + chunk.remaining() + ChunkEnd.remaining();
+                this.connection.enqueue(size, false);
+                this.connection.enqueue(chunk, false);
+                this.connection.enqueue(ChunkEnd.duplicate(), false);
+            }
+            try {
+                Reactor.this.flush(this.connection.key);
+            } catch (IOException error) {
+                Reactor.this.disconnectClient(this.connection.key);
+            }
+        }
+
+        private void end() {
+            if (this.cancelled)
+                return;
+            this.cancelled = true;
+            this.sent += LastChunk.remaining();
+            this.connection.enqueue(LastChunk.duplicate(), false);
+            this.connection.responding = null;
+            this.record();
+            try {
+                Reactor.this.process(this.connection.key);
+            } catch (IOException error) {
+                Reactor.this.disconnectClient(this.connection.key);
+            }
+        }
+
+        private void fail() {
+            if (this.cancelled)
+                return;
+            this.cancelled = true;
+            this.connection.responding = null;
+            this.record();
+            Reactor.this.disconnectClient(this.connection.key);
+        }
+
+        private void record() {
+            Request request = this.exchange.request;
+            Response response = this.exchange.response;
+            Reactor.this.metrics.record(request.route, response.code, request.size(), this.sent,
+                    System.nanoTime() - this.exchange.started);
+            Reactor.this.log(this.connection, request, response.code, this.sent);
+        }
+    }
+
+    /**
+     * Buffer pool owned by this reactor.
+     * @return pool of reactor
+     */
+    BufferPool pool() {
+        return this.pool;
+    }
+
+    /**
+     * Put an entry into access log of server, if it has one.
+     * @param connection request taken from
+     * @param request parsed from client, null if it could not be parsed
+     * @param code of response
+     * @param bytes of response
+     */
+    private void log(Connection connection, Request request, Integer code, long bytes) {
+        AccessLog accessLog = this.server.accessLog;
+        if (accessLog != null)
+            accessLog.log(connection.remote(), request, code, bytes);
+    }
+}
@@ -0,0 +1,553 @@
+package webtoy;
+
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Parse raw data extarcted from TCP server into an HTTP request.
+ *
+ * Format of request follow RFC 2616 standard.
+ * See more: https://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+ *
+ * Only request line is decoded while parsing, headers are kept as offsets into raw bytes.
+ * Maps headers, args, cookies and forms are views decoded from raw bytes on first access,
+ * so a handler reading only path or a header with header() decodes nothing else. Views
+ * are not thread-safe, like the rest of request.
+ */
+public class Request {
+    public HTTPMethod method;
+    public String url;
+    public String path;
+    public Map<String, String> headers;
+    public String body;
+    public final Integer bodysize;
+    public Map<String, String> forms;
+
+    // Get data form url and headers
+    public Map<String, String> args;
+    public Map<String, String> cookies;
+
+    // Body of requests on routes set to stream or spill, see RequestBody, body is null then
+    public RequestBody stream;
+
+    // Captured from path by router, see Router
+    public Map<String, String> params;
+
+    // Matched by router, null if request matched no route
+    Route route;
+
+    public static final String Version = "HTTP/1.1";
+
+    // All methods which has body
+    private static final Set<HTTPMethod> HasBodyMethods = Set.of(
+            HTTPMethod.POST, HTTPMethod.PUT,
+            HTTPMethod.DELETE, HTTPMethod.PATCH);
+
+    // Byte form of all methods and version for matching request line without decoding
+    private static final HTTPMethod[] Methods = HTTPMethod.values();
+    private static final byte[][] MethodNames = new byte[Methods.length][];
+    private static final byte[] VersionBytes = Version.getBytes(StandardCharsets.US_ASCII);
+    static {
+        for (Integer index = 0; index < Methods.length; index++)
+            MethodNames[index] = Methods[index].name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Names of common headers, shared by all requests instead of decoded from every one
+    private static final String[] KnownHeaders = {
+            "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Accept-Charset",
+            "Connection", "Content-Type", "Content-Length", "Content-Encoding", "Transfer-Encoding",
+            "Cache-Control", "Pragma", "Referer", "Origin", "Authorization", "Cookie", "Expect",
+            "Upgrade", "Range", "If-Range", "If-Match", "If-None-Match", "If-Modified-Since",
+            "If-Unmodified-Since", "X-Forwarded-For", "X-Forwarded-Proto", "X-Requested-With",
+            "DNT", "Sec-Fetch-Site", "Sec-Fetch-Mode", "Sec-Fetch-Dest", "Upgrade-Insecure-Requests" };
+    private static final byte[][] KnownHeaderBytes = new byte[KnownHeaders.length][];
+    static {
+        for (Integer index = 0; index < KnownHeaders.length; index++)
+            KnownHeaderBytes[index] = KnownHeaders[index].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Raw header bytes and offsets of parts in it, every header takes 4 slots:
+    // name start, name end, value start, value end
+    private final byte[] data;
+    private Integer urlStart;
+    private Integer urlEnd;
+    private Integer queryStart;
+    private int[] headerOffsets;
+    private Integer headerCount;
+    // Slot of last Cookie header, -1 if none
+    private Integer cookieSlot;
+    // Url encoded body, decoded into forms on first access
+    private String formData;
+
+    // Sources decoded by views
+    private static final int Headers = 0;
+    private static final int Args = 1;
+    private static final int Cookies = 2;
+    private static final int Forms = 3;
+
+    /**
+     * Map decoded from raw request on first access, then backed by a HashMap as before.
+     */
+    private class View extends AbstractMap<String, String> {
+        private final int source;
+        private Map<String, String> map;
+
+        View(int source) {
+            this.source = source;
+        }
+
+        private Map<String, String> map() {
+            if (this.map == null)
+                this.map = Request.this.decode(this.source);
+            return this.map;
+        }
+
+        @Override
+        public String get(Object key) {
+            // Looking up a header does not decode all of them
+            if (this.map == null && this.source == Headers)
+                return key instanceof String name ? Request.this.exactHeader(name) : null;
+            return this.map().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (this.map == null && this.source == Headers)
+                return key instanceof String name && Request.this.exactHeader(name) != null;
+            return this.map().containsKey(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return this.map().put(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return this.map().remove(key);
+        }
+
+        @Override
+        public int size() {
+            return this.map().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return this.map().isEmpty();
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return this.map().entrySet();
+        }
+    }
+
+    /**
+     * Throw when server could not parse data to an request.
+     */
+    public class InvalidRequest extends Exception {
+        public InvalidRequest(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parse raw HEADER data into an HTTP request.
+     *
+     * Request       = Request-Line              ;
+     *                 *(( general-header        ;
+     *                  | request-header         ;
+     *                  | entity-header ) CRLF)  ;
+     *                 CRLF
+     *                 [ message-body ]          ;
+     *
+     * @param data is raw string from TCP server
+     */
+    public Request(String data) throws InvalidRequest {
+        this(ByteBuffer.wrap(data.strip().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Parse raw HEADER bytes into an HTTP request in a single pass.
+     *
+     * Header bytes between position and limit of buffer are copied once, all parts of
+     * request line and headers are recorded as offsets into that copy and no String is
+     * made while scanning, buffer itself is left untouched.
+     *
+     * @param buffer contains raw header from TCP server, ends with or without double CRLF
+     */
+    public Request(ByteBuffer buffer) throws InvalidRequest {
+        this.data = new byte[buffer.remaining()];
+        buffer.duplicate().get(this.data);
+        this.headerOffsets = new int[32];
+        this.headerCount = 0;
+        this.cookieSlot = -1;
+        this.args = new View(Args);
+        this.forms = new View(Forms);
+        this.headers = new View(Headers);
+        this.cookies = new View(Cookies);
+        this.params = Map.of();
+
+        int lineEnd = this.parseRequestLine();
+        int length = this.data.length;
+        while (lineEnd < length) {
+            int lineStart = lineEnd + 2;
+            lineEnd = indexOfCRLF(this.data, lineStart, length);
+            if (lineEnd == lineStart)
+                break;
+            this.parseHeaderLine(lineStart, lineEnd);
+        }
+        if (HasBodyMethods.contains(this.method))
+            if (this.find("Content-Length") == -1)
+                throw new InvalidRequest("content length not indicated in header");
+        this.bodysize = this.parseContentLength();
+    }
+
+    /**
+     * Size of request on wire.
+     * @return bytes of header and body
+     */
+    Integer size() {
+        return this.data.length + this.bodysize;
+    }
+
+    /**
+     * Find value of header with given name, name is compared case-insensitively.
+     *
+     * Only value of matched header would be decoded into String.
+     *
+     * @param name of header
+     * @return value of header, null if not found
+     */
+    public String header(String name) {
+        Integer slot = this.find(name);
+        if (slot == -1)
+            return null;
+        return this.slice(this.headerOffsets[slot + 2], this.headerOffsets[slot + 3]);
+    }
+
+    /**
+     * Parse body from request.
+     *
+     * Only serveral HTTPMethods are allowed to send data, they are in HasBodyMethods.
+     * If methods are not allowed in HasBodyMethods, skip.
+     *
+     * If Content-Type header set to "application/x-www-form-urlencoded", then the forms
+     * could be set to urlDecode result of body.
+     * Otherwise body is equal to body data.
+     *
+     * @param content of http request body
+     * @throws InvalidRequest if cannot parse body from data
+     */
+    public void parseBody(String body) throws InvalidRequest {
+        if (!HasBodyMethods.contains(this.method))
+            return;
+        if (this.bodysize > body.length())
+            throw new InvalidRequest(
+                    String.format("content length not matched: %d > %d", this.bodysize, body.length()));
+        this.attachBody(body.substring(0, this.bodysize));
+    }
+
+    /**
+     * Parse body from raw bytes between position and limit of buffer, see parseBody(String).
+     * @param buffer contains body data, left untouched
+     * @throws InvalidRequest if cannot parse body from data
+     */
+    public void parseBody(ByteBuffer buffer) throws InvalidRequest {
+        if (!HasBodyMethods.contains(this.method))
+            return;
+        if (this.bodysize > buffer.remaining())
+            throw new InvalidRequest(
+                    String.format("content length not matched: %d > %d", this.bodysize, buffer.remaining()));
+        ByteBuffer content = buffer.duplicate();
+        content.limit(content.position() + this.bodysize);
+        this.attachBody(StandardCharsets.UTF_8.decode(content).toString());
+    }
+
+    /**
+     * Set body or forms of request by its Content-Type.
+     * @param body of exactly Content-Length size
+     */
+    private void attachBody(String body) throws InvalidRequest {
+        String contentType = this.header("Content-Type");
+        this.body = new String();
+        if ("application/x-www-form-urlencoded".equals(contentType))
+            this.formData = body;
+        else
+            this.body = body;
+    }
+
+    /**
+     * Parse header from line.
+     *
+     * Header       = header-key ":" [ OWS ] header-value [ OWS ]
+     *
+     * @param start of line in header data
+     * @param end of line in header data, exclusive
+     * @throws InvalidRequest if cannot parse header from line
+     */
+    private void parseHeaderLine(int start, int end) throws InvalidRequest {
+        byte[] data = this.data;
+        int colon = start;
+        while (colon < end && data[colon] != ':')
+            colon++;
+        if (colon == start || colon == end)
+            throw new InvalidRequest(String.format("invalid header line %s", this.slice(start, end)));
+        int valueStart = colon + 1;
+        while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t'))
+            valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t'))
+            valueEnd--;
+
+        Integer slot = this.headerCount * 4;
+        if (slot == this.headerOffsets.length) {
+            int[] grown = new int[this.headerOffsets.length * 2];
+            System.arraycopy(this.headerOffsets, 0, grown, 0, this.headerOffsets.length);
+            this.headerOffsets = grown;
+        }
+        this.headerOffsets[slot] = start;
+        this.headerOffsets[slot + 1] = colon;
+        this.headerOffsets[slot + 2] = valueStart;
+        this.headerOffsets[slot + 3] = valueEnd;
+        this.headerCount++;
+
+        // Cookie is decoded into cookies instead of headers
+        if (this.nameEquals(slot, "Cookie"))
+            this.cookieSlot = slot;
+    }
+
+    /**
+     * Decode source of a view into a map.
+     * @param source one of Headers, Args, Cookies or Forms
+     * @return decoded map, empty if source is absent
+     */
+    private Map<String, String> decode(int source) {
+        try {
+            switch (source) {
+                case Headers:
+                    Map<String, String> headers = new HashMap<>();
+                    for (int slot = 0; slot < this.headerCount * 4; slot += 4)
+                        if (!this.nameEquals(slot, "Cookie"))
+                            headers.put(this.name(slot),
+                                    this.slice(this.headerOffsets[slot + 2], this.headerOffsets[slot + 3]));
+                    return headers;
+                case Args:
+                    if (this.queryStart == -1)
+                        return new HashMap<>();
+                    return urlDecode(new String(this.data, this.queryStart + 1, this.urlEnd - this.queryStart - 1,
+                            StandardCharsets.UTF_8), "&");
+                case Cookies:
+                    if (this.cookieSlot == -1)
+                        return new HashMap<>();
+                    return urlDecode(this.slice(this.headerOffsets[this.cookieSlot + 2],
+                            this.headerOffsets[this.cookieSlot + 3]), "; ");
+                default:
+                    return this.formData == null ? new HashMap<>() : urlDecode(this.formData, "&");
+            }
+        } catch (InvalidRequest error) {
+            // Never thrown by urlDecode
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Value of last header with exactly given name, as headers map would have it.
+     */
+    private String exactHeader(String name) {
+        if (name.equalsIgnoreCase("Cookie"))
+            return null;
+        for (int slot = this.headerCount * 4 - 4; slot >= 0; slot -= 4) {
+            int start = this.headerOffsets[slot];
+            int size = this.headerOffsets[slot + 1] - start;
+            if (size != name.length())
+                continue;
+            int index = 0;
+            while (index < size && this.data[start + index] == name.charAt(index))
+                index++;
+            if (index == size)
+                return this.slice(this.headerOffsets[slot + 2], this.headerOffsets[slot + 3]);
+        }
+        return null;
+    }
+
+    /**
+     * Name of header in slot, a shared String if it is a common header.
+     */
+    private String name(int slot) {
+        int start = this.headerOffsets[slot];
+        int end = this.headerOffsets[slot + 1];
+        for (Integer index = 0; index < KnownHeaderBytes.length; index++)
+            if (regionEquals(this.data, start, end, KnownHeaderBytes[index]))
+                return KnownHeaders[index];
+        return this.slice(start, end);
+    }
+
+    /**
+     * If name of header in slot equals given name case-insensitively.
+     */
+    private Boolean nameEquals(int slot, String name) {
+        int start = this.headerOffsets[slot];
+        int size = name.length();
+        if (this.headerOffsets[slot + 1] - start != size)
+            return false;
+        for (int index = 0; index < size; index++)
+            if (toLowerCase(this.data[start + index]) != toLowerCase((byte) name.charAt(index)))
+                return false;
+        return true;
+    }
+
+    /**
+     * URL decode x-www-form-urlencoded format and generate dictonary.
+     *
+     * Decode string encoded with url pattern like: "Great=Hello%20world&Language=Java"
+     * The result should be {"Great": "Hello world", "Language": "Java"}
+     *
+     * @param params string for spliting
+     * @param delimeter for spliting params
+     * @return splited dictionary
+     * @throws InvalidRequest never thrown, kept for compatibility
+     */
+    public Map<String, String> urlDecode(String params, String delimeter) throws InvalidRequest {
+        Map<String, String> result = new HashMap<>();
+        int start = 0;
+        int length = params.length();
+        while (start <= length) {
+            int end = params.indexOf(delimeter, start);
+            if (end == -1)
+                end = length;
+            int equal = params.indexOf('=', start);
+            if (equal != -1 && equal < end) {
+                try {
+                    String value = params.substring(equal + 1, end);
+                    // Most values have nothing encoded
+                    if (value.indexOf('%') != -1 || value.indexOf('+') != -1)
+                        value = URLDecoder.decode(value, StandardCharsets.UTF_8);
+                    result.put(params.substring(start, equal), value);
+                // Ignore invalid paramaters
+                } catch (IllegalArgumentException error) {
+                    // Do nothing here
+                }
+            }
+            start = end + delimeter.length();
+        }
+        return result;
+    }
+
+    /**
+     * Parse request line and set request url, path, and method.
+     *
+     * Request-Line   = Method SP Request-URI SP HTTP-Version CRLF
+     * Method         = "OPTIONS" | "GET" | "HEAD" | "POST" | "PUT" | "DELETE" | "TRACE" | "CONNECT"
+     * Request-URI    = "*" | absoluteURI | abs_path | authority
+     * HTTP-Version   = "HTTP/1.1"
+     *
+     * @return end of request line, which is index of its CRLF
+     */
+    private int parseRequestLine() throws InvalidRequest {
+        byte[] data = this.data;
+        int lineEnd = indexOfCRLF(data, 0, data.length);
+        int methodEnd = indexOf(data, (byte) ' ', 0, lineEnd);
+        int urlEnd = methodEnd == -1 ? -1 : indexOf(data, (byte) ' ', methodEnd + 1, lineEnd);
+        if (urlEnd == -1 || urlEnd == methodEnd + 1 || indexOf(data, (byte) ' ', urlEnd + 1, lineEnd) != -1)
+            throw new InvalidRequest(String.format("invalid request line %s", this.slice(0, lineEnd)));
+        for (Integer index = 0; index < Methods.length && this.method == null; index++)
+            if (regionEquals(data, 0, methodEnd, MethodNames[index]))
+                this.method = Methods[index];
+        if (this.method == null)
+            throw new InvalidRequest(String.format("invalid request method %s", this.slice(0, methodEnd)));
+        if (!regionEquals(data, urlEnd + 1, lineEnd, VersionBytes))
+            throw new InvalidRequest(String.format("invalid request version %s", this.slice(urlEnd + 1, lineEnd)));
+
+        // Parse path and args from url
+        this.urlStart = methodEnd + 1;
+        this.urlEnd = urlEnd;
+        this.queryStart = indexOf(data, (byte) '?', this.urlStart, urlEnd);
+        this.url = new String(data, this.urlStart, urlEnd - this.urlStart, StandardCharsets.UTF_8);
+        if (this.queryStart == -1)
+            this.path = this.url;
+        else
+            this.path = this.url.substring(0, this.queryStart - this.urlStart);
+        return lineEnd;
+    }
+
+    /**
+     * Read Content-Length header as a number without decoding it into String.
+     * @return size of body, 0 if not indicated
+     */
+    private Integer parseContentLength() throws InvalidRequest {
+        Integer slot = this.find("Content-Length");
+        if (slot == -1)
+            return 0;
+        int start = this.headerOffsets[slot + 2];
+        int end = this.headerOffsets[slot + 3];
+        if (start == end || end - start > 10)
+            throw new InvalidRequest("invalid content length");
+        long size = 0;
+        for (int index = start; index < end; index++) {
+            int digit = this.data[index] - '0';
+            if (digit < 0 || digit > 9)
+                throw new InvalidRequest("invalid content length");
+            size = size * 10 + digit;
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new InvalidRequest("invalid content length");
+        return (int) size;
+    }
+
+    /**
+     * Find slot of header with given name in header offsets.
+     * @param name of header, compared case-insensitively
+     * @return slot of header, -1 if not found
+     */
+    private Integer find(String name) {
+        for (int slot = 0; slot < this.headerCount * 4; slot += 4)
+            if (this.nameEquals(slot, name))
+                return slot;
+        return -1;
+    }
+
+    /**
+     * Decode part of raw header into String.
+     */
+    private String slice(int start, int end) {
+        return new String(this.data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte toLowerCase(byte value) {
+        return value >= 'A' && value <= 'Z' ? (byte) (value + 32) : value;
+    }
+
+    private static boolean regionEquals(byte[] data, int start, int end, byte[] target) {
+        if (end - start != target.length)
+            return false;
+        for (int index = 0; index < target.length; index++)
+            if (data[start + index] != target[index])
+                return false;
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte target, int start, int end) {
+        for (int index = start; index < end; index++)
+            if (data[index] == target)
+                return index;
+        return -1;
+    }
+
+    /**
+     * Find next CRLF in data, end of data is treated as a CRLF.
+     * @return index of CR, or end if not found
+     */
+    private static int indexOfCRLF(byte[] data, int start, int end) {
+        for (int index = start; index + 1 < end; index++)
+            if (data[index] == '\r' && data[index + 1] == '\n')
+                return index;
+        return end;
+    }
+}
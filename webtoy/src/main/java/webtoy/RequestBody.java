@@ -0,0 +1,538 @@
+package webtoy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Body of a request on a route set with Route.stream() or Route.spill(), given to handler
+ * as request.stream and read as bytes, never decoded into String.
+ *
+ * Body could be read in one of three ways, only the first one asked for could be used:
+ *
+ *   inputStream()  blocking reads, for handlers on executor or virtual threads
+ *   channel()      blocking reads into buffers
+ *   publisher()    chunks pushed to a subscriber as it requests them, never blocks
+ *
+ * Reactor appends data as it arrives from client. On a streaming route, reading from client
+ * pauses once Server.MaxStreamedBodyBytes are not read yet, and resumes when handler read
+ * half of them. On a spilling route, handler is called once whole body arrived, body larger
+ * than threshold of route is written into a temporary file deleted once request is responded.
+ *
+ * Reading fails with IOException if client closed connection before whole body arrived,
+ * or if request was already responded. Part of body not read when request is responded
+ * is dropped, so following requests on connection are still served.
+ */
+public class RequestBody {
+    private static final Integer FileChunkSize = 64 * 1024;
+
+    private final long length;
+    private final Integer spill;
+    private final ReentrantLock lock;
+    private final Condition arrived;
+
+    // Data arrived and not read yet, in memory or in a temporary file once spilled
+    private final ArrayDeque<ByteBuffer> chunks;
+    private long buffered;
+    private long received;
+    private FileChannel file;
+    private long fileRead;
+    private ByteBuffer current;
+
+    private IOException failure;
+    private Boolean closed;
+    private Boolean paused;
+    private Runnable resume;
+    private Thread producer;
+    private String reader;
+
+    // Subscriber of publisher and chunks it requested
+    private Boolean subscribed;
+    private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private Boolean terminated;
+    private final AtomicInteger emitting;
+
+    /**
+     * Make an empty body waiting for data, on reactor thread of its connection.
+     * @param length of body from Content-Length
+     * @param spill size kept in memory before written into a temporary file, null for never
+     */
+    RequestBody(long length, Integer spill) {
+        this.length = length;
+        this.spill = spill;
+        this.lock = new ReentrantLock();
+        this.arrived = this.lock.newCondition();
+        this.chunks = new ArrayDeque<>();
+        this.buffered = 0;
+        this.received = 0;
+        this.file = null;
+        this.fileRead = 0;
+        this.current = null;
+        this.failure = null;
+        this.closed = false;
+        this.paused = false;
+        this.resume = null;
+        this.producer = Thread.currentThread();
+        this.reader = null;
+        this.subscribed = false;
+        this.subscriber = null;
+        this.demand = 0;
+        this.terminated = false;
+        this.emitting = new AtomicInteger();
+    }
+
+    /**
+     * Size of whole body.
+     * @return Content-Length of request
+     */
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * Read body as a blocking stream, which ends once whole body is read.
+     * @return stream of body
+     * @throws IllegalStateException if body is already read in another way
+     */
+    public InputStream inputStream() {
+        this.use("inputStream");
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0)
+                    return 0;
+                return RequestBody.this.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+
+            @Override
+            public int available() {
+                return RequestBody.this.available();
+            }
+        };
+    }
+
+    /**
+     * Read body as a blocking channel, which returns -1 once whole body is read.
+     * @return channel of body
+     * @throws IllegalStateException if body is already read in another way
+     */
+    public ReadableByteChannel channel() {
+        this.use("channel");
+        return new ReadableByteChannel() {
+            private Boolean open = true;
+
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                if (!this.open)
+                    throw new ClosedChannelException();
+                return RequestBody.this.read(buffer);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return this.open;
+            }
+
+            @Override
+            public void close() {
+                this.open = false;
+            }
+        };
+    }
+
+    /**
+     * Read body as chunks published to a single subscriber, as many as it requested.
+     * Subscriber is called on reactor thread as data arrives, or on the thread requesting
+     * chunks already arrived.
+     * @return publisher of body
+     * @throws IllegalStateException if body is already read in another way
+     */
+    public Flow.Publisher<ByteBuffer> publisher() {
+        this.use("publisher");
+        return subscriber -> {
+            Boolean taken;
+            this.lock.lock();
+            try {
+                taken = this.subscribed;
+                this.subscribed = true;
+            } finally {
+                this.lock.unlock();
+            }
+            if (taken) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long count) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("body already has a subscriber"));
+                return;
+            }
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long count) {
+                    RequestBody.this.request(count);
+                }
+
+                @Override
+                public void cancel() {
+                    RequestBody.this.cancel();
+                }
+            });
+            // Nothing is pushed before onSubscribe returned
+            this.subscriber = subscriber;
+            this.emit();
+        };
+    }
+
+    /**
+     * Bytes of body not arrived yet.
+     */
+    long missing() {
+        this.lock.lock();
+        try {
+            return this.length - this.received;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * If reading from client should wait until handler read more, see resume().
+     */
+    Boolean paused() {
+        this.lock.lock();
+        try {
+            return this.paused;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set task run by reader once body is no longer paused, which should read from client again.
+     * @param resume task, run on thread of reader
+     */
+    void resume(Runnable resume) {
+        this.lock.lock();
+        try {
+            this.resume = resume;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append data arrived from client, called on reactor thread.
+     * @param data between position and limit, copied or written into file
+     * @return false if reading from client should pause
+     */
+    Boolean offer(ByteBuffer data) {
+        Integer size = data.remaining();
+        Boolean paused;
+        this.lock.lock();
+        try {
+            this.received += size;
+            // Data of a body failed or responded is dropped, keeping connection in step
+            if (this.closed || this.failure != null)
+                return true;
+            if (this.spill != null && (this.file != null || this.buffered + size > this.spill)) {
+                try {
+                    this.spill(data);
+                } catch (IOException error) {
+                    this.failure = error;
+                    this.discard();
+                }
+            } else {
+                this.chunks.add(ByteBuffer.allocate(size).put(data).flip());
+                this.buffered += size;
+            }
+            this.paused = this.spill == null && this.buffered >= Server.MaxStreamedBodyBytes;
+            paused = this.paused;
+            this.arrived.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.emit();
+        return !paused;
+    }
+
+    /**
+     * Fail reading of body whose data would never arrive, like client closed connection.
+     * @param error thrown to reader once data already arrived is read
+     */
+    void fail(IOException error) {
+        this.lock.lock();
+        try {
+            if (this.failure == null && this.received < this.length)
+                this.failure = error;
+            this.arrived.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.emit();
+    }
+
+    /**
+     * Release body once request is responded or connection is closed, data not read is dropped
+     * and temporary file is deleted.
+     */
+    void close() {
+        this.lock.lock();
+        try {
+            if (this.closed)
+                return;
+            this.closed = true;
+            if (this.failure == null && !this.finished())
+                this.failure = new EOFException("request responded before body was read");
+            this.discard();
+            this.arrived.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.emit();
+    }
+
+    /**
+     * Read data into buffer, wait for data if none arrived.
+     * @return bytes read, -1 if whole body is read
+     */
+    private int read(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining())
+            return 0;
+        Runnable resume;
+        Integer count;
+        this.lock.lock();
+        try {
+            while (this.current == null || !this.current.hasRemaining()) {
+                this.current = this.take();
+                if (this.current != null)
+                    break;
+                if (this.failure != null)
+                    throw this.failure;
+                if (this.finished())
+                    return -1;
+                if (Thread.currentThread() == this.producer)
+                    throw new IOException("reading body on reactor thread would block it");
+                try {
+                    this.arrived.await();
+                } catch (InterruptedException error) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for body");
+                }
+            }
+            count = Math.min(buffer.remaining(), this.current.remaining());
+            buffer.put(this.current.slice(this.current.position(), count));
+            this.current.position(this.current.position() + count);
+            resume = this.unpause();
+        } finally {
+            this.lock.unlock();
+        }
+        if (resume != null)
+            resume.run();
+        return count;
+    }
+
+    private int available() {
+        this.lock.lock();
+        try {
+            long available = this.buffered + (this.current == null ? 0 : this.current.remaining());
+            if (this.file != null)
+                available += this.received - this.fileRead;
+            return (int) Math.min(available, Integer.MAX_VALUE);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void use(String reader) {
+        this.lock.lock();
+        try {
+            if (this.reader != null)
+                throw new IllegalStateException(String.format("body is already read with %s", this.reader));
+            this.reader = reader;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void request(long count) {
+        if (count <= 0) {
+            this.lock.lock();
+            try {
+                if (this.failure == null)
+                    this.failure = new IOException("subscriber requested " + count + " chunks");
+            } finally {
+                this.lock.unlock();
+            }
+        } else {
+            this.lock.lock();
+            try {
+                this.demand = this.demand + count < 0 ? Long.MAX_VALUE : this.demand + count;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        this.emit();
+    }
+
+    private void cancel() {
+        this.lock.lock();
+        try {
+            this.terminated = true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Push chunks to subscriber while it has demand, then complete or fail it. Only one thread
+     * pushes at a time, others calling meanwhile make it loop once more.
+     */
+    private void emit() {
+        Flow.Subscriber<? super ByteBuffer> subscriber = this.subscriber;
+        if (subscriber == null || this.emitting.getAndIncrement() != 0)
+            return;
+        do {
+            while (true) {
+                ByteBuffer chunk = null;
+                Throwable error = null;
+                Boolean complete = false;
+                Runnable resume = null;
+                this.lock.lock();
+                try {
+                    if (this.terminated)
+                        break;
+                    if (this.demand > 0) {
+                        try {
+                            chunk = this.take();
+                        } catch (IOException failure) {
+                            this.failure = failure;
+                        }
+                    }
+                    if (chunk != null) {
+                        this.demand--;
+                        resume = this.unpause();
+                    } else if (this.failure != null) {
+                        error = this.failure;
+                        this.terminated = true;
+                    } else if (this.finished()) {
+                        complete = true;
+                        this.terminated = true;
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                if (resume != null)
+                    resume.run();
+                if (chunk != null) {
+                    subscriber.onNext(chunk);
+                    continue;
+                }
+                if (error != null)
+                    subscriber.onError(error);
+                else if (complete)
+                    subscriber.onComplete();
+                break;
+            }
+        } while (this.emitting.decrementAndGet() != 0);
+    }
+
+    /**
+     * Take next chunk not read yet, with lock held.
+     * @return chunk, null if none arrived
+     */
+    private ByteBuffer take() throws IOException {
+        if (this.file != null) {
+            if (this.fileRead >= this.received)
+                return null;
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(FileChunkSize, this.received - this.fileRead));
+            while (chunk.hasRemaining())
+                if (this.file.read(chunk, this.fileRead + chunk.position()) == -1)
+                    throw new EOFException("temporary file of body truncated");
+            this.fileRead += chunk.capacity();
+            return chunk.flip();
+        }
+        ByteBuffer chunk = this.chunks.poll();
+        if (chunk != null)
+            this.buffered -= chunk.remaining();
+        return chunk;
+    }
+
+    /**
+     * If whole body arrived and is read, with lock held.
+     */
+    private Boolean finished() {
+        return this.received >= this.length && this.chunks.isEmpty()
+                && (this.file == null || this.fileRead >= this.received)
+                && (this.current == null || !this.current.hasRemaining());
+    }
+
+    /**
+     * Stop pausing once half of paused data is read, with lock held.
+     * @return task resuming reading from client, to be run without lock
+     */
+    private Runnable unpause() {
+        if (!this.paused || this.resume == null || this.buffered > Server.MaxStreamedBodyBytes / 2)
+            return null;
+        this.paused = false;
+        return this.resume;
+    }
+
+    /**
+     * Write data into temporary file, moving data kept in memory there first, with lock held.
+     */
+    private void spill(ByteBuffer data) throws IOException {
+        if (this.file == null) {
+            this.file = FileChannel.open(Files.createTempFile("webtoy-body-", ".tmp"), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            for (ByteBuffer chunk : this.chunks)
+                while (chunk.hasRemaining())
+                    this.file.write(chunk);
+            this.chunks.clear();
+            this.buffered = 0;
+        }
+        while (data.hasRemaining())
+            this.file.write(data);
+    }
+
+    /**
+     * Drop data not read and delete temporary file, with lock held.
+     */
+    private void discard() {
+        this.chunks.clear();
+        this.buffered = 0;
+        this.current = null;
+        this.paused = false;
+        if (this.file == null)
+            return;
+        try {
+            this.file.close();
+        } catch (IOException error) {
+            // Do nothing here
+        }
+        this.file = null;
+    }
+}
@@ -0,0 +1,617 @@
+package webtoy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+public class Response {
+
+    public final Integer code;
+    public final String content;
+    public final Map<String, String> headers;
+
+    /**
+     * List all validate HTTP/1.1 response code and its default description.
+     * 
+     * See more: https://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html
+     */
+    public static final Map<Integer, String> StatusCodes = Map.ofEntries(
+            Map.entry(100, "Continue"),
+            Map.entry(101, "Switching Protocols"),
+            Map.entry(102, "Processing"),
+            Map.entry(103, "Early Hints"),
+            Map.entry(200, "OK"),
+            Map.entry(201, "Created"),
+            Map.entry(202, "Accepted"),
+            Map.entry(203, "Non-Authoritative Information"),
+            Map.entry(204, "No Content"),
+            Map.entry(205, "Reset Content"),
+            Map.entry(206, "Partial Content"),
+            Map.entry(207, "Multi-Status"),
+            Map.entry(208, "Already Reported"),
+            Map.entry(226, "IM Used"),
+            Map.entry(300, "Multiple Choices"),
+            Map.entry(301, "Moved Permanently"),
+            Map.entry(302, "Found"),
+            Map.entry(303, "See Other"),
+            Map.entry(304, "Not Modified"),
+            Map.entry(305, "Use Proxy"),
+            Map.entry(306, "(Unused)"),
+            Map.entry(307, "Temporary Redirect"),
+            Map.entry(308, "Permanent Redirect"),
+            Map.entry(400, "Bad Request"),
+            Map.entry(401, "Unauthorized"),
+            Map.entry(402, "Payment Required"),
+            Map.entry(403, "Forbidden"),
+            Map.entry(404, "Not Found"),
+            Map.entry(405, "Method Not Allowed"),
+            Map.entry(406, "Not Acceptable"),
+            Map.entry(407, "Proxy Authentication Required"),
+            Map.entry(408, "Request Timeout"),
+            Map.entry(409, "Conflict"),
+            Map.entry(410, "Gone"),
+            Map.entry(411, "Length Required"),
+            Map.entry(412, "Precondition Failed"),
+            Map.entry(413, "Payload Too Large"),
+            Map.entry(414, "URI Too Long"),
+            Map.entry(415, "Unsupported Media Type"),
+            Map.entry(416, "Range Not Satisfiable"),
+            Map.entry(417, "Expectation Failed"),
+            Map.entry(421, "Misdirected Request"),
+            Map.entry(422, "Unprocessable Entity"),
+            Map.entry(423, "Locked"),
+            Map.entry(424, "Failed Dependency"),
+            Map.entry(425, "Too Early"),
+            Map.entry(426, "Upgrade Required"),
+            Map.entry(427, "Unassigned"),
+            Map.entry(428, "Precondition Required"),
+            Map.entry(429, "Too Many Requests"),
+            Map.entry(430, "Unassigned"),
+            Map.entry(431, "Request Header Fields Too Large"),
+            Map.entry(451, "Unavailable For Legal Reasons"),
+            Map.entry(500, "Internal Server Error"),
+            Map.entry(501, "Not Implemented"),
+            Map.entry(502, "Bad Gateway"),
+            Map.entry(503, "Service Unavailable"),
+            Map.entry(504, "Gateway Timeout"),
+            Map.entry(505, "HTTP Version Not Supported"),
+            Map.entry(506, "Variant Also Negotiates"),
+            Map.entry(507, "Insufficient Storage"),
+            Map.entry(508, "Loop Detected"),
+            Map.entry(509, "Unassigned"),
+            Map.entry(510, "Not Extended"),
+            Map.entry(511, "Network Authentication Required"));
+
+    public static final String Version = "HTTP/1.1";
+    public static String DefaultContentType = "text/html";
+
+    /**
+     * Writes body of a streamed response, see stream().
+     */
+    @FunctionalInterface
+    public interface BodyWriter {
+        void write(OutputStream output) throws IOException;
+    }
+
+    /**
+     * Throw when handler made an invalid response (like unknown response code).
+     */
+    public class InvalidResponse extends Exception {
+        InvalidResponse(String message) {
+            super(message);
+        }
+    }
+
+    // Status line of every code in StatusCodes and common header names, encoded once
+    private static final byte[][] StatusLines = new byte[600][];
+    private static final byte[] ContentLengthHeader = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ContentTypeHeader = "Content-Type: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ChunkedHeader = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    static {
+        for (Map.Entry<Integer, String> status : StatusCodes.entrySet())
+            StatusLines[status.getKey()] = statusLine(status.getKey());
+    }
+
+    // Raw body of response, null if response is made with String content
+    private final ByteBuffer body;
+    private Long length;
+
+    // File whose region is body of response, null if response is not made with a file
+    private final Path file;
+    private final long position;
+
+    // Publisher of body sent in chunks, null if length of body is known
+    private final Flow.Publisher<ByteBuffer> publisher;
+
+    // Whole response serialized once by freeze(), null if it is serialized on every write
+    private ByteBuffer serialized;
+
+    // Variants of a frozen response varying on Accept-Encoding, each serialized once,
+    // plain one has body as it is, see Compression.precompress
+    private volatile Response plain;
+    private volatile Response gzipped;
+    private volatile Response deflated;
+
+    /**
+     * Make an response, headers could be add in Response.headers.
+     * @param code of response
+     * @param content of response
+     */
+    public Response(Integer code, String content) {
+        this.code = code;
+        this.content = content;
+        this.headers = new HashMap<>();
+        this.body = null;
+        this.file = null;
+        this.position = 0;
+        this.publisher = null;
+    }
+
+    /**
+     * Make an response with raw bytes as body, which would be written as it is.
+     *
+     * Content of such response is null, bytes between position and limit of body are
+     * written without copying, so body should not be changed after response made.
+     *
+     * @param code of response
+     * @param body of response
+     */
+    public Response(Integer code, ByteBuffer body) {
+        this.code = code;
+        this.content = null;
+        this.headers = new HashMap<>();
+        this.body = body.asReadOnlyBuffer();
+        this.file = null;
+        this.position = 0;
+        this.publisher = null;
+    }
+
+    public Response(Integer code, byte[] body) {
+        this(code, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Make an response with a region of file as body, which is sent from file to socket
+     * by transferTo without being read into memory (see StaticFiles).
+     *
+     * File is opened when response is written, it should not be changed before that.
+     *
+     * @param code of response
+     * @param file to be sent
+     * @param position of first byte sent
+     * @param count of bytes sent
+     */
+    public Response(Integer code, Path file, long position, long count) {
+        this.code = code;
+        this.content = null;
+        this.headers = new HashMap<>();
+        this.body = null;
+        this.length = count;
+        this.file = file;
+        this.position = position;
+        this.publisher = null;
+    }
+
+    private Response(Response response, Map<String, String> headers) {
+        this.code = response.code;
+        this.content = response.content;
+        this.headers = headers;
+        this.body = response.body;
+        this.length = response.length;
+        this.file = response.file;
+        this.position = response.position;
+        this.publisher = response.publisher;
+    }
+
+    private Response(Response response, ByteBuffer body) {
+        this.code = response.code;
+        this.content = null;
+        this.headers = new HashMap<>(response.headers);
+        this.body = body.asReadOnlyBuffer();
+        this.file = null;
+        this.position = 0;
+        this.publisher = null;
+    }
+
+    private Response(Integer code, long length) {
+        this.code = code;
+        this.content = null;
+        this.headers = new HashMap<>();
+        this.body = null;
+        this.length = length;
+        this.file = null;
+        this.position = 0;
+        this.publisher = null;
+    }
+
+    /**
+     * Make a response of which only head could be written, its body of given length
+     * is queued by writer itself (like parts of a multipart/byteranges body).
+     * @param code of response
+     * @param length of body
+     * @return response without body
+     */
+    static Response head(Integer code, long length) {
+        return new Response(code, length);
+    }
+
+    /**
+     * Make a response whose body is sent with chunked transfer-encoding as publisher gives it,
+     * so it could be sent before it is fully made.
+     *
+     * Reactor subscribes once response is written, and requests one buffer at a time while
+     * client keeps up reading. Buffers should not be changed after given, empty ones are
+     * skipped. If publisher fails, connection is closed before body ends, so client could
+     * tell body is incomplete.
+     *
+     * Such responses are never cached, compressed or shared by coalesced requests.
+     *
+     * @param code of response
+     * @param publisher of body, subscribed once
+     */
+    public Response(Integer code, Flow.Publisher<ByteBuffer> publisher) {
+        this.code = code;
+        this.content = null;
+        this.headers = new HashMap<>();
+        this.body = null;
+        this.length = 0L;
+        this.file = null;
+        this.position = 0;
+        this.publisher = publisher;
+    }
+
+    /**
+     * Make a streamed response whose body is written into an output stream, see
+     * Response(Integer, Flow.Publisher). Writer is called on a virtual thread once response is
+     * written, every flush() or 16K written sends a chunk. Writing blocks while client is behind
+     * reading, and fails with IOException once client is gone.
+     * @param code of response
+     * @param writer of body
+     * @return streamed response
+     */
+    public static Response stream(Integer code, BodyWriter writer) {
+        return new Response(code, new ResponseStream(writer));
+    }
+
+    /**
+     * Shortcuts for making simple status code response (like 404).
+     * @param code of response
+     */
+    public Response(Integer code) {
+        this(code, "");
+    }
+
+    /**
+     * Shortcuts for making 200 response.
+     * @param content of resposne
+     */
+    public Response(String content) {
+        this(200, content);
+    }
+
+    /**
+     * Make HTTP/1.1 response.
+     * 
+     * The full response should looks like:
+     * 
+     *   HTTP/1.1 200 OK<CRLF>
+     *   Server: Simple-Python-HTTP-Server<CRLF>
+     *   Content-Type: text/plain<CRLF>
+     *   Content-Length: 37<CRLF>
+     *   <CRLF>
+     *   [Body]
+     * 
+     * See more: https://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html
+     */
+    @Override
+    public String toString() {
+        ByteBuffer buffer = ByteBuffer.allocate(this.headSize() + (int) this.length());
+        this.writeTo(buffer);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialize whole response into buffer, which must have headSize() + length() bytes remaining.
+     * @param buffer for writing response into
+     */
+    public void writeTo(ByteBuffer buffer) {
+        this.writeHead(buffer);
+        this.writeBody(buffer);
+    }
+
+    /**
+     * Size of body in bytes, which is sent as Content-Length.
+     * Body of 1xx, 204 and 304 responses is never sent, so their length is 0.
+     * @return length of body
+     */
+    public long length() {
+        if (this.length == null)
+            this.length = (long) (bodiless(this.code) ? 0
+                    : this.body != null ? this.body.remaining() : utf8Length(this.content));
+        return this.length;
+    }
+
+    /**
+     * Size of status line and headers in bytes, including the empty line before body.
+     * @return size of head part
+     */
+    public Integer headSize() {
+        Integer size = statusLineOf(this.code).length;
+        for (Map.Entry<String, String> header : this.headers.entrySet())
+            if (!header.getKey().equals("Content-Length") && !header.getKey().equals("Transfer-Encoding"))
+                size += header.getKey().length() + header.getValue().length() + 4;
+        if (!this.headers.containsKey("Content-Type"))
+            size += ContentTypeHeader.length + DefaultContentType.length() + CRLF.length;
+        if (!bodiless(this.code) && this.publisher != null)
+            size += ChunkedHeader.length;
+        else if (!bodiless(this.code))
+            size += ContentLengthHeader.length + Long.toString(this.length()).length() + CRLF.length;
+        return size + CRLF.length;
+    }
+
+    /**
+     * Write status line and headers of response, ends with an empty line before body.
+     *
+     * Content-Length is always set from length of body, except for responses which never
+     * have a body (1xx, 204 and 304), and streamed responses which have Transfer-Encoding
+     * chunked instead. Content-Type is set to DefaultContentType if not given in headers.
+     *
+     * @param buffer with at least headSize() bytes remaining
+     */
+    public void writeHead(ByteBuffer buffer) {
+        buffer.put(statusLineOf(this.code));
+        for (Map.Entry<String, String> header : this.headers.entrySet()) {
+            if (header.getKey().equals("Content-Length") || header.getKey().equals("Transfer-Encoding"))
+                continue;
+            putASCII(buffer, header.getKey());
+            buffer.put((byte) ':').put((byte) ' ');
+            putASCII(buffer, header.getValue());
+            buffer.put(CRLF);
+        }
+        if (!this.headers.containsKey("Content-Type")) {
+            buffer.put(ContentTypeHeader);
+            putASCII(buffer, DefaultContentType);
+            buffer.put(CRLF);
+        }
+        if (!bodiless(this.code) && this.publisher != null) {
+            buffer.put(ChunkedHeader);
+        } else if (!bodiless(this.code)) {
+            buffer.put(ContentLengthHeader);
+            putDigits(buffer, this.length());
+            buffer.put(CRLF);
+        }
+        buffer.put(CRLF);
+    }
+
+    /**
+     * Write body of response, String content is encoded in UTF-8, region of file is read.
+     * Body of a streamed response is sent by reactor, nothing is written here.
+     * @param buffer with at least length() bytes remaining
+     */
+    public void writeBody(ByteBuffer buffer) {
+        if (bodiless(this.code) || this.publisher != null)
+            return;
+        if (this.body != null) {
+            buffer.put(this.body.duplicate());
+            return;
+        }
+        if (this.file != null) {
+            try (FileChannel channel = FileChannel.open(this.file)) {
+                ByteBuffer region = buffer.slice(buffer.position(), (int) this.length());
+                while (region.hasRemaining())
+                    if (channel.read(region, this.position + region.position()) == -1)
+                        throw new IOException(String.format("file %s truncated", this.file));
+                buffer.position(buffer.position() + (int) this.length());
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            return;
+        }
+        if (this.length() == this.content.length())
+            putASCII(buffer, this.content);
+        else
+            buffer.put(this.content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Make a copy of response serialized once into a read-only buffer, the copy could be
+     * written to any number of clients without serializing again (like from a cache).
+     * Headers of the copy could not be changed.
+     * @return frozen copy of response
+     */
+    public Response freeze() {
+        if (this.serialized != null)
+            return this;
+        if (this.publisher != null)
+            throw new IllegalStateException("streamed response could not be frozen");
+        Response frozen = new Response(this, Collections.unmodifiableMap(new HashMap<>(this.headers)));
+        ByteBuffer buffer = ByteBuffer.allocate(frozen.headSize() + (int) frozen.length());
+        frozen.writeTo(buffer);
+        frozen.serialized = buffer.flip().asReadOnlyBuffer();
+        return frozen;
+    }
+
+    /**
+     * Serialized bytes of a frozen response.
+     * @return read-only view of whole response, null if response is not frozen
+     */
+    ByteBuffer serialized() {
+        return this.serialized == null ? null : this.serialized.duplicate();
+    }
+
+    /**
+     * Make a copy of response whose headers could be changed without changing this one.
+     * @return copy sharing body of response
+     */
+    Response copy() {
+        return new Response(this, new HashMap<>(this.headers));
+    }
+
+    /**
+     * Make a copy of response varying on Accept-Encoding, with compressed body if given.
+     * @param encoding of compressed body, null if body is not compressed
+     * @param compressed body, null if body is not compressed
+     * @return copy whose headers could be changed
+     */
+    Response encode(String encoding, ByteBuffer compressed) {
+        Response copy = compressed == null
+                ? new Response(this, new HashMap<>(this.headers))
+                : new Response(this, compressed);
+        String vary = copy.headers.get("Vary");
+        if (vary == null)
+            copy.headers.put("Vary", "Accept-Encoding");
+        else if (!vary.toLowerCase().contains("accept-encoding"))
+            copy.headers.put("Vary", vary + ", Accept-Encoding");
+        if (compressed != null)
+            copy.headers.put("Content-Encoding", encoding);
+        return copy;
+    }
+
+    /**
+     * Variant of a frozen response kept for an encoding.
+     * @param encoding of body, null for body as it is
+     * @return frozen variant, null if not kept
+     */
+    Response variant(String encoding) {
+        if (encoding == null)
+            return this.plain;
+        return encoding.equals(Compression.Gzip) ? this.gzipped : this.deflated;
+    }
+
+    /**
+     * Keep a frozen variant of this response for an encoding, for writing it again without
+     * compressing or serializing.
+     * @param encoding of body, null for body as it is
+     * @param variant made by encode() and frozen
+     */
+    void variant(String encoding, Response variant) {
+        if (encoding == null)
+            this.plain = variant;
+        else if (encoding.equals(Compression.Gzip))
+            this.gzipped = variant;
+        else
+            this.deflated = variant;
+    }
+
+    /**
+     * Raw body of response made with bytes.
+     * @return read-only view of body, null if response is made with String content
+     */
+    public ByteBuffer body() {
+        return this.body == null ? null : this.body.duplicate();
+    }
+
+    /**
+     * Publisher of body of a streamed response.
+     * @return publisher, null if response is not streamed
+     */
+    Flow.Publisher<ByteBuffer> publisher() {
+        return bodiless(this.code) ? null : this.publisher;
+    }
+
+    /**
+     * File whose region is body of response.
+     * @return path of file, null if response is not made with a file
+     */
+    Path file() {
+        return this.file;
+    }
+
+    /**
+     * Position in file of first byte of body.
+     */
+    long position() {
+        return this.position;
+    }
+
+    /**
+     * If response of given code never has a body, so has no Content-Length.
+     */
+    private static Boolean bodiless(Integer code) {
+        return code < 200 || code == 204 || code == 304;
+    }
+
+    private static byte[] statusLineOf(Integer code) {
+        if (code >= 0 && code < StatusLines.length && StatusLines[code] != null)
+            return StatusLines[code];
+        return statusLine(code);
+    }
+
+    private static byte[] statusLine(Integer code) {
+        return String.format("%s %d %s\r\n", Version, code, StatusCodes.getOrDefault(code, "unknown"))
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Put chars of a Latin-1 string as bytes, header fields are not allowed to have other chars.
+     */
+    private static void putASCII(ByteBuffer buffer, String text) {
+        Integer length = text.length();
+        for (int index = 0; index < length; index++)
+            buffer.put((byte) text.charAt(index));
+    }
+
+    private static void putDigits(ByteBuffer buffer, long value) {
+        Integer start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int left = start, right = buffer.position() - 1; left < right; left++, right--) {
+            byte digit = buffer.get(left);
+            buffer.put(left, buffer.get(right));
+            buffer.put(right, digit);
+        }
+    }
+
+    /**
+     * Count bytes of text encoded in UTF-8 without encoding it, an unpaired surrogate
+     * is encoded as "?" like String.getBytes does.
+     */
+    private static Integer utf8Length(String text) {
+        Integer length = text.length();
+        int size = length;
+        for (int index = 0; index < length; index++) {
+            char value = text.charAt(index);
+            if (value < 0x80)
+                continue;
+            if (value < 0x800) {
+                size += 1;
+            } else if (Character.isHighSurrogate(value) && index + 1 < length
+                    && Character.isLowSurrogate(text.charAt(index + 1))) {
+                size += 2;
+                index++;
+            } else if (!Character.isSurrogate(value)) {
+                size += 2;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Make a read-only response closing connection, which could be written as it is.
+     */
+    private static ByteBuffer canned(Integer code) {
+        Response response = new Response(code);
+        response.headers.put("Connection", "close");
+        ByteBuffer buffer = ByteBuffer.allocate(response.headSize() + (int) response.length());
+        response.writeTo(buffer);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    // For serving invalid request form client, duplicate() them before writing
+    public static final ByteBuffer InvalidRequestResponse = canned(400);
+    public static final ByteBuffer RequestTimeoutResponse = canned(408);
+    public static final ByteBuffer LengthRequiredResponse = canned(411);
+    public static final ByteBuffer ContentTooLargeResponse = canned(413);
+    public static final ByteBuffer HeaderTooLargeResponse = canned(431);
+}
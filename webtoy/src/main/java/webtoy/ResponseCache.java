@@ -0,0 +1,291 @@
+package webtoy;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded cache of serialized responses, for routes set with Route.cache.
+ *
+ * Responses are frozen before stored (see Response.freeze), so a hit is written as it is
+ * without calling handler or serializing anything. Entries expire after TTL of route or
+ * max-age of response, and least recently used entries are evicted once cache is full.
+ *
+ * Entries are spread over segments by key, every segment is an LRU map with its own lock
+ * and an equal share of maxBytes, so threads only contend on the same segment.
+ *
+ * Only 200 responses are stored, and not if response has Set-Cookie or its Cache-Control
+ * has no-store, no-cache or private. Requests with Cache-Control no-cache skip the lookup,
+ * with no-store they are neither looked up nor stored.
+ */
+public class ResponseCache {
+    private static final Integer Segments = 16;
+
+    // Rough bytes taken by an entry besides its key and response
+    private static final Integer EntryOverhead = 96;
+
+    // Longest time an entry is kept, so expiry never overflows whatever max-age handler gives
+    private static final Duration MaxTtl = Duration.ofDays(365);
+
+    private static class Entry {
+        final String path;
+        final Response response;
+        final long expires;
+        final long size;
+
+        Entry(String path, Response response, long expires, long size) {
+            this.path = path;
+            this.response = response;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+
+    private static class Segment {
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+    }
+
+    private final Segment[] segments;
+    private final long maxSegmentBytes;
+
+    // Metrics of cache
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * Make an empty cache.
+     * @param maxBytes of responses kept in cache
+     */
+    public ResponseCache(long maxBytes) {
+        this.segments = new Segment[Segments];
+        for (Integer index = 0; index < Segments; index++)
+            this.segments[index] = new Segment();
+        this.maxSegmentBytes = maxBytes / Segments;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /**
+     * Key of request, made of method, path, args sorted by name and values of given headers.
+     * Names and values of args are url encoded again, so decoded "&" or "=" in them could not
+     * make a key of other args.
+     * @param request to be looked up
+     * @param headers whose values make different responses, like Accept-Language
+     * @return key of cache
+     */
+    public static String key(Request request, List<String> headers) {
+        StringBuilder key = new StringBuilder().append(request.method).append(' ').append(request.path);
+        if (!request.args.isEmpty()) {
+            char separator = '?';
+            for (Map.Entry<String, String> arg : new TreeMap<>(request.args).entrySet()) {
+                key.append(separator).append(URLEncoder.encode(arg.getKey(), StandardCharsets.UTF_8))
+                        .append('=').append(URLEncoder.encode(arg.getValue(), StandardCharsets.UTF_8));
+                separator = '&';
+            }
+        }
+        for (String header : headers) {
+            String value = request.header(header);
+            key.append('\n').append(header).append(':').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Find a response stored and not expired.
+     * @param key of request
+     * @return frozen response, null if not found
+     */
+    public Response get(String key) {
+        Segment segment = this.segment(key);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() > 0) {
+                this.hits.increment();
+                return entry.response;
+            }
+            if (entry != null) {
+                segment.entries.remove(key);
+                segment.bytes -= entry.size;
+            }
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Store response of a request if it could be cached.
+     * @param key of request
+     * @param path of request, for invalidating
+     * @param response generated by handler
+     * @param ttl of entry, max-age of response takes place of it if given, at most a year
+     * @return frozen response if stored, otherwise response itself
+     */
+    public Response put(String key, String path, Response response, Duration ttl) {
+        if (response == null || response.code != 200 || response.headers.containsKey("Set-Cookie")
+                || response.publisher() != null)
+            return response;
+        String control = response.headers.get("Cache-Control");
+        if (directive(control, "no-store") || directive(control, "no-cache") || directive(control, "private"))
+            return response;
+        long nanos = ttl.compareTo(MaxTtl) > 0 ? MaxTtl.toNanos() : ttl.toNanos();
+        Long maxAge = maxAge(control);
+        if (maxAge != null)
+            nanos = Duration.ofSeconds(Math.min(maxAge, MaxTtl.getSeconds())).toNanos();
+        if (nanos <= 0)
+            return response;
+
+        Response frozen = response.freeze();
+        long size = frozen.serialized().remaining() + key.length() * 2L + EntryOverhead;
+        if (size > this.maxSegmentBytes)
+            return frozen;
+        Entry entry = new Entry(path, frozen, System.nanoTime() + nanos, size);
+        Segment segment = this.segment(key);
+        synchronized (segment) {
+            Entry former = segment.entries.put(key, entry);
+            if (former != null)
+                segment.bytes -= former.size;
+            segment.bytes += size;
+            Iterator<Entry> iterator = segment.entries.values().iterator();
+            while (segment.bytes > this.maxSegmentBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                segment.bytes -= eldest.size;
+                this.evictions.increment();
+            }
+        }
+        return frozen;
+    }
+
+    /**
+     * Remove all responses of given path, with any args.
+     * @param path of requests
+     * @return number of responses removed
+     */
+    public Integer invalidate(String path) {
+        Integer removed = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                Iterator<Entry> iterator = segment.entries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.path.equals(path)) {
+                        iterator.remove();
+                        segment.bytes -= entry.size;
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all responses.
+     */
+    public void invalidateAll() {
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Number of lookups served from cache.
+     */
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Number of lookups not found or expired.
+     */
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Number of responses removed for making room.
+     */
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Number of responses kept, including expired ones not removed yet.
+     */
+    public Integer entries() {
+        Integer count = 0;
+        for (Segment segment : this.segments)
+            synchronized (segment) {
+                count += segment.entries.size();
+            }
+        return count;
+    }
+
+    /**
+     * Bytes taken by responses kept.
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments)
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        return bytes;
+    }
+
+    private Segment segment(String key) {
+        Integer hash = key.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (Segments - 1)];
+    }
+
+    /**
+     * If Cache-Control header has given directive.
+     */
+    static Boolean directive(String control, String name) {
+        if (control == null)
+            return false;
+        for (String part : control.split(",")) {
+            String directive = part.strip();
+            Integer equal = directive.indexOf('=');
+            if ((equal == -1 ? directive : directive.substring(0, equal)).equalsIgnoreCase(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Seconds of s-maxage, or max-age if not given, in Cache-Control header.
+     * @return seconds, null if not given or invalid
+     */
+    static Long maxAge(String control) {
+        if (control == null)
+            return null;
+        Long maxAge = null;
+        for (String part : control.split(",")) {
+            String[] pair = part.strip().split("=", 2);
+            if (pair.length < 2)
+                continue;
+            try {
+                if (pair[0].equalsIgnoreCase("s-maxage"))
+                    return Long.parseLong(pair[1].strip());
+                if (pair[0].equalsIgnoreCase("max-age"))
+                    maxAge = Long.parseLong(pair[1].strip());
+            } catch (NumberFormatException error) {
+                continue;
+            }
+        }
+        return maxAge;
+    }
+}
@@ -0,0 +1,190 @@
+package webtoy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publisher of body of a response made with Response.stream.
+ *
+ * Writer is called on a virtual thread once subscribed, and writes into an output stream
+ * which collects data into chunks. A chunk is handed to subscriber once it is full or
+ * flushed, and only when subscriber requested it, otherwise writer waits.
+ */
+class ResponseStream implements Flow.Publisher<ByteBuffer> {
+    private static final Integer ChunkSize = 16 * 1024;
+
+    private final Response.BodyWriter writer;
+    private final ReentrantLock lock;
+    private final Condition requested;
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private Boolean cancelled;
+
+    ResponseStream(Response.BodyWriter writer) {
+        this.writer = writer;
+        this.lock = new ReentrantLock();
+        this.requested = this.lock.newCondition();
+        this.subscriber = null;
+        this.demand = 0;
+        this.cancelled = false;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Boolean taken;
+        this.lock.lock();
+        try {
+            taken = this.subscriber != null;
+            if (!taken)
+                this.subscriber = subscriber;
+        } finally {
+            this.lock.unlock();
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long count) {
+                if (!taken)
+                    ResponseStream.this.request(count);
+            }
+
+            @Override
+            public void cancel() {
+                if (!taken)
+                    ResponseStream.this.cancel();
+            }
+        });
+        if (taken) {
+            subscriber.onError(new IllegalStateException("response body is already subscribed"));
+            return;
+        }
+        try {
+            Application.VirtualThreads.execute(this::write);
+        } catch (RejectedExecutionException error) {
+            subscriber.onError(error);
+        }
+    }
+
+    /**
+     * Call writer, then complete subscriber, or fail it if writer failed.
+     */
+    private void write() {
+        Output output = new Output();
+        try {
+            this.writer.write(output);
+            output.close();
+        } catch (Exception error) {
+            if (!this.cancelled())
+                this.subscriber.onError(error);
+            return;
+        }
+        if (!this.cancelled())
+            this.subscriber.onComplete();
+    }
+
+    private void request(long count) {
+        this.lock.lock();
+        try {
+            if (count <= 0)
+                this.cancelled = true;
+            else
+                this.demand = this.demand + count < 0 ? Long.MAX_VALUE : this.demand + count;
+            this.requested.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void cancel() {
+        this.lock.lock();
+        try {
+            this.cancelled = true;
+            this.requested.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private Boolean cancelled() {
+        this.lock.lock();
+        try {
+            return this.cancelled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Hand a chunk to subscriber, wait until it requested one.
+     * @throws IOException if subscriber cancelled, like client is gone
+     */
+    private void send(ByteBuffer chunk) throws IOException {
+        this.lock.lock();
+        try {
+            while (this.demand == 0 && !this.cancelled)
+                this.requested.await();
+            if (this.cancelled)
+                throw new IOException("response is no longer sent");
+            this.demand--;
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for client");
+        } finally {
+            this.lock.unlock();
+        }
+        this.subscriber.onNext(chunk);
+    }
+
+    /**
+     * Output stream collecting writes into chunks, not thread-safe.
+     */
+    private class Output extends OutputStream {
+        private ByteBuffer buffer = ByteBuffer.allocate(ChunkSize);
+        private Boolean closed = false;
+
+        @Override
+        public void write(int value) throws IOException {
+            if (this.closed)
+                throw new IOException("stream closed");
+            if (!this.buffer.hasRemaining())
+                this.flush();
+            this.buffer.put((byte) value);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.closed)
+                throw new IOException("stream closed");
+            while (length > 0) {
+                Integer count = Math.min(length, this.buffer.remaining());
+                this.buffer.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+                if (!this.buffer.hasRemaining())
+                    this.flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.buffer.position() == 0)
+                return;
+            ByteBuffer chunk = this.buffer.flip();
+            this.buffer = ByteBuffer.allocate(ChunkSize);
+            ResponseStream.this.send(chunk);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed)
+                return;
+            this.flush();
+            this.closed = true;
+        }
+    }
+}
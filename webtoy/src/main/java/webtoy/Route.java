@@ -0,0 +1,206 @@
+package webtoy;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * A handler registered on a path for some methods, with options of how it should be called.
+ *
+ * Route is returned by Application.route, options could be set on it like:
+ *
+ *   app.route("/ping", request -> new Response("pong")).inline();
+ */
+public class Route {
+    public final String path;
+    public final List<HTTPMethod> methods;
+    public final Handler handler;
+    public final AsyncHandler asyncHandler;
+    private Boolean inline;
+    private Duration timeout;
+    private Duration cacheTtl;
+    private List<String> cacheHeaders;
+    private Duration coalesceWait;
+    private Integer maxBodySize;
+    private Boolean stream;
+    private Integer spill;
+
+    Route(String path, List<HTTPMethod> methods, Handler handler) {
+        this.path = path;
+        this.methods = methods;
+        this.handler = handler;
+        this.asyncHandler = null;
+        this.inline = false;
+        this.timeout = null;
+        this.cacheTtl = null;
+        this.cacheHeaders = List.of();
+        this.coalesceWait = null;
+        this.maxBodySize = null;
+        this.stream = false;
+        this.spill = null;
+    }
+
+    Route(String path, List<HTTPMethod> methods, AsyncHandler handler) {
+        this.path = path;
+        this.methods = methods;
+        this.handler = null;
+        this.asyncHandler = handler;
+        this.inline = false;
+        this.timeout = null;
+        this.cacheTtl = null;
+        this.cacheHeaders = List.of();
+        this.coalesceWait = null;
+        this.maxBodySize = null;
+        this.stream = false;
+        this.spill = null;
+    }
+
+    /**
+     * Always call handler on reactor thread even if application has an executor,
+     * only for cheap handlers which never block, saves handing request to another thread.
+     * @return this route
+     */
+    public Route inline() {
+        this.inline = true;
+        return this;
+    }
+
+    /**
+     * If handler should be called on reactor thread.
+     * @return true if route is set inline
+     */
+    public Boolean isInline() {
+        return this.inline;
+    }
+
+    /**
+     * Respond an HTTP 504 response if handler did not finish in given time,
+     * only works for async handlers and handlers called on executor of application.
+     * @param timeout of handler, null for waiting forever
+     * @return this route
+     */
+    public Route timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Timeout of handler.
+     * @return timeout, null if not set
+     */
+    public Duration timeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Keep responses of GET requests in cache of application for given time, see ResponseCache.
+     * Requests with same path and args share a response, unless they differ in given headers.
+     * @param ttl of cached responses, null for not caching
+     * @param headers whose values make different responses, like Accept-Language
+     * @return this route
+     */
+    public Route cache(Duration ttl, String... headers) {
+        this.cacheTtl = ttl;
+        this.cacheHeaders = List.of(headers);
+        return this;
+    }
+
+    /**
+     * Time responses of route are cached.
+     * @return ttl, null if route is not cached
+     */
+    public Duration cacheTtl() {
+        return this.cacheTtl;
+    }
+
+    /**
+     * Headers making different cached responses.
+     * @return names of headers
+     */
+    public List<String> cacheHeaders() {
+        return this.cacheHeaders;
+    }
+
+    /**
+     * Let concurrent GET requests with same path and args share one handler call, every request
+     * gets response of the call in flight. A request waiting longer than given time calls
+     * handler by itself. Headers given to cache(...) also tell requests apart.
+     * @param wait for a call in flight, null for not coalescing
+     * @return this route
+     */
+    public Route coalesce(Duration wait) {
+        this.coalesceWait = wait;
+        return this;
+    }
+
+    /**
+     * Time a request waits for the same request in flight.
+     * @return wait time, null if route is not coalesced
+     */
+    public Duration coalesceWait() {
+        return this.coalesceWait;
+    }
+
+    /**
+     * Reject requests with a body larger than given size with HTTP 413, in place of
+     * Server.MaxRequestBodySize.
+     * @param maxBodySize in bytes, null for Server.MaxRequestBodySize
+     * @return this route
+     */
+    public Route maxBodySize(Integer maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /**
+     * Largest body of requests accepted.
+     * @return size in bytes, null if Server.MaxRequestBodySize is used
+     */
+    public Integer maxBodySize() {
+        return this.maxBodySize;
+    }
+
+    /**
+     * Call handler once header of request arrived, and let it read body from request.stream
+     * while body is still arriving, see RequestBody. Reading from client pauses while handler
+     * is behind by Server.MaxStreamedBodyBytes.
+     *
+     * Handler is called on executor of application, or on a virtual thread if application has
+     * none, since reading body blocks. An inline handler must read body with its publisher.
+     *
+     * @return this route
+     */
+    public Route stream() {
+        this.stream = true;
+        this.spill = null;
+        return this;
+    }
+
+    /**
+     * If handler is called before body of request arrived.
+     * @return true if route is set to stream
+     */
+    public Boolean isStreaming() {
+        return this.stream;
+    }
+
+    /**
+     * Call handler once body of request arrived like by default, but keep body in request.stream
+     * instead of request.body, in memory up to given size and in a temporary file beyond that.
+     * Temporary file is deleted once request is responded.
+     * @param threshold of body kept in memory, in bytes
+     * @return this route
+     */
+    public Route spill(Integer threshold) {
+        this.spill = threshold;
+        this.stream = false;
+        return this;
+    }
+
+    /**
+     * Size of body kept in memory before spilled into a temporary file.
+     * @return threshold in bytes, null if route is not set to spill
+     */
+    public Integer spill() {
+        return this.spill;
+    }
+}
@@ -0,0 +1,351 @@
+package webtoy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Match path of request to registered routes with a compressed radix tree.
+ *
+ * Paths of routes could contain parameters and a trailing wildcard, like:
+ *
+ *   /users/{id}            {id} matches one non-empty segment
+ *   /users/{id:int}/posts  {id:int} matches only a segment of digits
+ *   /static/*              * matches rest of path, could be empty
+ *
+ * Captured values are put into params of request, wildcard is captured with name "*".
+ *
+ * Static text is tried before parameters and parameters before wildcard, typed parameters
+ * before untyped ones, if a branch does not reach a route matching goes back and tries next one.
+ * A lookup walks the tree in place and allocates nothing but the captured values.
+ */
+public class Router {
+
+    public static final String Wildcard = "*";
+
+    private static final HTTPMethod[] Methods = HTTPMethod.values();
+
+    /**
+     * Kind of segment matched by a parameter, checked character by character.
+     */
+    enum Segment {
+        INT,
+        ALPHA,
+        STRING;
+
+        static Segment of(String type) {
+            switch (type) {
+                case "int":
+                    return INT;
+                case "alpha":
+                    return ALPHA;
+                case "":
+                case "str":
+                    return STRING;
+                default:
+                    throw new IllegalArgumentException(String.format("unknown parameter type %s", type));
+            }
+        }
+
+        Boolean accepts(String path, int start, int end) {
+            if (this == STRING)
+                return true;
+            for (int index = start; index < end; index++) {
+                char c = path.charAt(index);
+                if (this == INT ? c < '0' || c > '9' : !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Node of radix tree.
+     *
+     * A static node matches its prefix, a parameter node matches one segment and a wildcard
+     * node matches rest of path. Routes on a node are indexed by ordinal of their methods,
+     * methods holding a route are also kept as a bitmask for checking and Allow header.
+     */
+    private static class Node {
+        String prefix;
+        final String name;
+        final Segment segment;
+
+        // Static children and first characters of their prefixes
+        char[] indices = new char[0];
+        Node[] children = new Node[0];
+        Node[] params = new Node[0];
+        Node wildcard;
+
+        Route[] routes;
+        int methods;
+        String allow;
+
+        Node(String prefix) {
+            this.prefix = prefix;
+            this.name = null;
+            this.segment = null;
+        }
+
+        Node(String name, Segment segment) {
+            this.prefix = "";
+            this.name = name;
+            this.segment = segment;
+        }
+
+        Node child(Node child) {
+            this.indices = Arrays.copyOf(this.indices, this.indices.length + 1);
+            this.children = Arrays.copyOf(this.children, this.children.length + 1);
+            this.indices[this.indices.length - 1] = child.prefix.charAt(0);
+            this.children[this.children.length - 1] = child;
+            return child;
+        }
+    }
+
+    /**
+     * Given path found in router but no method supported.
+     * Generally need to respond an HTTP 405 response.
+     */
+    class UnsupportedMethod extends Exception {
+        public final String allow;
+
+        public UnsupportedMethod(String message, String allow) {
+            super(message, null, false, false);
+            this.allow = allow;
+        }
+    }
+
+    /**
+     * No handler for this path found.
+     * Generallt need to repond an HTTP 404 response.
+     */
+    class URLNotFound extends Exception {
+        public URLNotFound(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Node root;
+
+    Router() {
+        this.root = new Node("");
+    }
+
+    /**
+     * Register path with selected methods to given handler.
+     * @param path of request
+     * @param methods appceptable of handler
+     * @param handler for responding
+     * @return registered route
+     */
+    public Route register(String path, List<HTTPMethod> methods, Handler handler) {
+        return this.register(new Route(path, methods, handler));
+    }
+
+    /**
+     * Register route on its path and methods, a route registered later on same path
+     * and method replaces former one.
+     * @param route to be registered
+     * @return registered route
+     * @throws IllegalArgumentException if path of route is malformed, or it names a
+     *                                  parameter differently from a route registered before
+     */
+    public Route register(Route route) {
+        Node node = this.insert(route.path);
+        if (node.routes == null)
+            node.routes = new Route[Methods.length];
+        for (HTTPMethod method : route.methods) {
+            node.routes[method.ordinal()] = route;
+            node.methods |= 1 << method.ordinal();
+        }
+        StringJoiner allow = new StringJoiner(", ");
+        for (HTTPMethod method : Methods)
+            if ((node.methods & 1 << method.ordinal()) != 0)
+                allow.add(method.name());
+        node.allow = allow.toString();
+        return route;
+    }
+
+    /**
+     * Try to match route related to given path with method.
+     * @param path of request
+     * @param method of request
+     * @return route realted to given path and method
+     * @throws UnsupportedMethod if any handler of given path found but no handler for given method
+     * @throws URLNotFound if no handler realted to given url path
+     */
+    public Route match(String path, HTTPMethod method) throws UnsupportedMethod, URLNotFound {
+        return this.match(path, method, null);
+    }
+
+    /**
+     * Match route of request and put parameters captured from its path into params of request.
+     * @param request to be matched
+     * @return route realted to path and method of request
+     * @throws UnsupportedMethod if any handler of given path found but no handler for given method
+     * @throws URLNotFound if no handler realted to given url path
+     */
+    public Route match(Request request) throws UnsupportedMethod, URLNotFound {
+        return this.match(request.path, request.method, request);
+    }
+
+    private Route match(String path, HTTPMethod method, Request request) throws UnsupportedMethod, URLNotFound {
+        Node node = find(this.root, path, 0, request);
+        if (node == null)
+            throw new URLNotFound(String.format("invalid url %s", path));
+        if ((node.methods & 1 << method.ordinal()) == 0)
+            throw new UnsupportedMethod(String.format("unsupprted method %s for url %s", method, path), node.allow);
+        return node.routes[method.ordinal()];
+    }
+
+    /**
+     * Find node holding routes which matches path from index, whose prefix has been matched.
+     * Parameters are captured while returning from a matched branch, so values of branches
+     * given up are never made.
+     */
+    private static Node find(Node node, String path, int index, Request request) {
+        int length = path.length();
+        if (index == length) {
+            if (node.methods != 0)
+                return node;
+            if (node.wildcard != null) {
+                capture(request, Wildcard, path, index, index);
+                return node.wildcard;
+            }
+            return null;
+        }
+
+        char first = path.charAt(index);
+        for (int slot = 0; slot < node.indices.length; slot++) {
+            if (node.indices[slot] != first)
+                continue;
+            Node child = node.children[slot];
+            if (path.startsWith(child.prefix, index)) {
+                Node found = find(child, path, index + child.prefix.length(), request);
+                if (found != null)
+                    return found;
+            }
+            break;
+        }
+
+        if (node.params.length > 0) {
+            int end = path.indexOf('/', index);
+            if (end == -1)
+                end = length;
+            if (end > index)
+                for (Node param : node.params) {
+                    if (!param.segment.accepts(path, index, end))
+                        continue;
+                    Node found = find(param, path, end, request);
+                    if (found != null) {
+                        capture(request, param.name, path, index, end);
+                        return found;
+                    }
+                }
+        }
+
+        if (node.wildcard != null) {
+            capture(request, Wildcard, path, index, length);
+            return node.wildcard;
+        }
+        return null;
+    }
+
+    private static void capture(Request request, String name, String path, int start, int end) {
+        if (request == null)
+            return;
+        if (request.params.isEmpty())
+            request.params = new HashMap<>();
+        request.params.put(name, path.substring(start, end));
+    }
+
+    /**
+     * Walk down tree along given path, make nodes not existing yet.
+     * @return node where routes of path are held
+     */
+    private Node insert(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/')
+            throw new IllegalArgumentException(String.format("path %s should start with /", path));
+        Node node = this.root;
+        int index = 0;
+        while (index < path.length()) {
+            char c = path.charAt(index);
+            if (c == '*') {
+                if (index != path.length() - 1 || path.charAt(index - 1) != '/')
+                    throw new IllegalArgumentException(String.format("wildcard should end path %s", path));
+                if (node.wildcard == null)
+                    node.wildcard = new Node(Wildcard, Segment.STRING);
+                return node.wildcard;
+            }
+            if (c == '{') {
+                int close = path.indexOf('}', index);
+                if (close == -1 || path.charAt(index - 1) != '/'
+                        || close + 1 < path.length() && path.charAt(close + 1) != '/')
+                    throw new IllegalArgumentException(String.format("malformed parameter in path %s", path));
+                String[] parts = path.substring(index + 1, close).split(":", 2);
+                node = param(node, parts[0], Segment.of(parts.length > 1 ? parts[1] : ""), path);
+                index = close + 1;
+                continue;
+            }
+            int end = index;
+            while (end < path.length() && path.charAt(end) != '{' && path.charAt(end) != '*')
+                end++;
+            node = insertStatic(node, path.substring(index, end));
+            index = end;
+        }
+        return node;
+    }
+
+    /**
+     * Get or make parameter child of node, children are kept ordered by their segment kind.
+     */
+    private static Node param(Node node, String name, Segment segment, String path) {
+        if (name.isEmpty() || name.equals(Wildcard))
+            throw new IllegalArgumentException(String.format("invalid parameter name in path %s", path));
+        for (Node param : node.params) {
+            if (param.segment != segment)
+                continue;
+            if (!param.name.equals(name))
+                throw new IllegalArgumentException(String.format(
+                        "parameter {%s} in path %s conflicts with registered {%s}", name, path, param.name));
+            return param;
+        }
+        Node param = new Node(name, segment);
+        Node[] params = Arrays.copyOf(node.params, node.params.length + 1);
+        params[params.length - 1] = param;
+        Arrays.sort(params, (a, b) -> a.segment.compareTo(b.segment));
+        node.params = params;
+        return param;
+    }
+
+    /**
+     * Insert static text under node, splitting prefix of a child if text only shares a part of it.
+     */
+    private static Node insertStatic(Node node, String text) {
+        while (!text.isEmpty()) {
+            Integer slot = null;
+            for (int index = 0; index < node.indices.length; index++)
+                if (node.indices[index] == text.charAt(0))
+                    slot = index;
+            if (slot == null)
+                return node.child(new Node(text));
+
+            Node child = node.children[slot];
+            int common = 0;
+            int limit = Math.min(child.prefix.length(), text.length());
+            while (common < limit && child.prefix.charAt(common) == text.charAt(common))
+                common++;
+            if (common < child.prefix.length()) {
+                Node split = new Node(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                split.child(child);
+                node.children[slot] = split;
+                child = split;
+            }
+            text = text.substring(common);
+            node = child;
+        }
+        return node;
+    }
+}
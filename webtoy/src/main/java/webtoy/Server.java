@@ -0,0 +1,364 @@
+package webtoy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.Selector;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Server {
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final Reactor[] reactors;
+    private final Balance balance;
+    private Integer nextReactor;
+    private volatile Boolean status;
+    private final Map<InetAddress, Integer> addresses;
+
+    final Application application;
+    volatile AccessLog accessLog;
+    volatile Compression compression;
+    volatile Admission admission;
+    public final Metrics metrics;
+    public final InetSocketAddress address;
+
+    // Max data size for a single HTTP/1.1 request header
+    public static Integer MaxRequestHeaderSize = 8190;
+    public static final Integer MaxRequestBodySize = 1024 * 1024 * 10;
+
+    // Buffers of every reactor are pooled, buffers larger than MaxPooledBufferSize are not pooled,
+    // and at most MaxPooledBytes of idle buffers are kept by each reactor
+    public static Integer MaxPooledBufferSize = 1024 * 1024;
+    public static Long MaxPooledBytes = 64L * 1024 * 1024;
+    public static Boolean DirectBuffers = false;
+
+    // Stop serving requests on a connection once its unwritten responses exceed this size
+    public static Integer MaxOutboundBytes = 1024 * 1024;
+
+    // Stop taking requests from a connection while this many of its requests are being handled
+    public static Integer MaxPipelinedRequests = 64;
+
+    // Stop reading a streamed request body while this many of its bytes are not read by handler
+    public static Integer MaxStreamedBodyBytes = 256 * 1024;
+
+    // Connections accepted beyond these limits are closed at once
+    public static Integer MaxConnections = 10000;
+    public static Integer MaxConnectionsPerAddress = 256;
+
+    // Time allowed for receiving a request header, receiving its body, waiting for next request
+    // on a kept-alive connection, and for client reading any of queued responses, null for no limit
+    public static Duration HeaderTimeout = Duration.ofSeconds(10);
+    public static Duration BodyTimeout = Duration.ofSeconds(30);
+    public static Duration IdleTimeout = Duration.ofSeconds(60);
+    public static Duration WriteTimeout = Duration.ofSeconds(30);
+
+    /**
+     * What a connection closed by timeout was waiting for.
+     */
+    public enum Timeout {
+        // Rest of request header, or first request of a new connection
+        HEADER,
+        // Rest of request body
+        BODY,
+        // Next request on a kept-alive connection
+        IDLE,
+        // Client reading queued responses
+        WRITE
+    }
+
+    /**
+     * Limit of connections an accepted connection was closed for.
+     */
+    public enum Limit {
+        // MaxConnections of server
+        GLOBAL,
+        // MaxConnectionsPerAddress of a client address
+        ADDRESS
+    }
+
+    /**
+     * Strategy for choosing which reactor an accepted connection is handed to.
+     */
+    public enum Balance {
+        // Hand connections to reactors one by one
+        ROUND_ROBIN,
+        // Hand connection to the reactor currently owning fewest connections
+        LEAST_LOADED
+    }
+
+    /**
+     * Make a server serving all connections on a single reactor thread.
+     */
+    public Server(String address, Integer port, Application application) throws IOException {
+        this(address, port, application, 1);
+    }
+
+    public Server(String address, Integer port, Application application, Integer reactors) throws IOException {
+        this(address, port, application, reactors, Balance.ROUND_ROBIN);
+    }
+
+    /**
+     * Make a server with one acceptor and given number of worker reactors.
+     *
+     * Acceptor runs on the thread calling start(), every reactor runs on its own thread
+     * with its own Selector, so handlers may be called concurrently when reactors > 1.
+     *
+     * @param address for listening
+     * @param port for listening
+     * @param application for responding requests
+     * @param reactors number of worker reactor threads, at least 1
+     * @param balance strategy for handing accepted connections to reactors
+     */
+    public Server(String address, Integer port, Application application, Integer reactors, Balance balance)
+            throws IOException {
+        if (reactors < 1)
+            throw new IllegalArgumentException(String.format("invalid reactors count %d", reactors));
+        this.listener = ServerSocketChannel.open();
+        this.address = new InetSocketAddress(address, port);
+        this.listener.bind(this.address);
+        this.listener.configureBlocking(false);
+        this.selector = Selector.open();
+        this.listener.register(selector, SelectionKey.OP_ACCEPT);
+
+        // Private variables
+        this.status = false;
+        this.application = application;
+        this.accessLog = new AccessLog(Channels.newChannel(System.out), AccessLog.DefaultCapacity);
+        this.balance = balance;
+        this.nextReactor = 0;
+        this.addresses = new ConcurrentHashMap<>();
+        // Metrics counts connections from reactors array, which reactors fill in below
+        this.reactors = new Reactor[reactors];
+        Reactor[] workers = this.reactors;
+        this.metrics = new Metrics(reactors, () -> connections(workers));
+        for (Integer index = 0; index < reactors; index++)
+            this.reactors[index] = new Reactor(this, index);
+    }
+
+    /**
+     * Accept new connection from client and hand it to a reactor, or close it at once
+     * if server or address of client has too many connections.
+     * @param key is select key contains server socket channel
+     */
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel client;
+        while ((client = this.listener.accept()) != null) {
+            InetAddress address;
+            try {
+                address = ((InetSocketAddress) client.getRemoteAddress()).getAddress();
+            } catch (IOException error) {
+                this.discard(client);
+                continue;
+            }
+            Limit limit = this.admit(address);
+            if (limit != null) {
+                this.metrics.reject(limit);
+                this.discard(client);
+                continue;
+            }
+            // Client counted by admit is released if it could not be handed over
+            try {
+                client.configureBlocking(false);
+                Reactor reactor = this.pickReactor();
+                reactor.register(new Connection(client, reactor.pool(), address));
+            } catch (IOException error) {
+                this.release(address);
+                this.discard(client);
+            }
+        }
+    }
+
+    /**
+     * Close a client which would not be served, failing to close it does not stop accepting others.
+     */
+    private void discard(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException error) {
+            // Do nothing here
+        }
+    }
+
+    /**
+     * Count a new connection of address, unless it would exceed a limit.
+     * @param address of client
+     * @return limit exceeded, null if connection is admitted
+     */
+    private Limit admit(InetAddress address) {
+        if (this.connections() >= MaxConnections)
+            return Limit.GLOBAL;
+        Boolean[] admitted = { false };
+        this.addresses.compute(address, (key, count) -> {
+            if (count != null && count >= MaxConnectionsPerAddress)
+                return count;
+            admitted[0] = true;
+            return count == null ? 1 : count + 1;
+        });
+        return admitted[0] ? null : Limit.ADDRESS;
+    }
+
+    /**
+     * Stop counting a connection of address once it is closed, called by reactors.
+     * @param address of client
+     */
+    void release(InetAddress address) {
+        this.addresses.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Choose reactor for a new connection with balance strategy.
+     * @return reactor which would own the connection
+     */
+    private Reactor pickReactor() {
+        if (this.balance == Balance.LEAST_LOADED) {
+            Reactor chosen = this.reactors[0];
+            for (Reactor reactor : this.reactors)
+                if (reactor.load() < chosen.load())
+                    chosen = reactor;
+            return chosen;
+        }
+        Reactor chosen = this.reactors[this.nextReactor];
+        this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+        return chosen;
+    }
+
+    /**
+     * Start reactors and waiting accept events from selector, blocks until server closed.
+     */
+    public void start() {
+        if (this.accessLog != null)
+            this.accessLog.start();
+        for (Reactor reactor : this.reactors)
+            reactor.start();
+        this.status = true;
+        try {
+            while (this.status) {
+                try {
+                    this.selector.select();
+                } catch (IOException error) {
+                    return;
+                }
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    try {
+                        // Create a new connection for serving client
+                        if (key.isValid() && key.isAcceptable())
+                            this.accept(key);
+                    } catch (IOException error) {
+                        // Failed accepting this client, wait for next one
+                        continue;
+                    }
+                }
+            }
+        } catch (ClosedSelectorException error) {
+            return;
+        } finally {
+            this.status = false;
+            try {
+                this.selector.close();
+            } catch (IOException error) {
+                // Do nothing here
+            }
+        }
+    }
+
+    /**
+     * Close server, stop all reactors and close all client connections.
+     *
+     * Acceptor selector is closed by the thread running start() after it wakes up.
+     */
+    public void close() {
+        this.status = false;
+        try {
+            this.listener.close();
+        } catch (IOException error) {
+            // Still need to stop reactors
+        }
+        this.selector.wakeup();
+        for (Reactor reactor : this.reactors)
+            reactor.close();
+        if (this.accessLog != null)
+            this.accessLog.close();
+    }
+
+    /**
+     * Replace access log of server, which writes to console by default.
+     * Log is started and closed with server, or started at once if server is running,
+     * set to null for not logging requests.
+     * @param accessLog for logging responded requests
+     */
+    public void accessLog(AccessLog accessLog) {
+        if (accessLog != null && this.status)
+            accessLog.start();
+        AccessLog former = this.accessLog;
+        this.accessLog = accessLog;
+        if (former != null && former != accessLog)
+            former.close();
+    }
+
+    /**
+     * Compress responses with gzip or deflate if client accepts, not compressed by default.
+     * @param compression settings, null for not compressing
+     */
+    public void compression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Limit requests handled at once and rate of requests of every client, no limit by default.
+     * @param admission control, null for admitting every request
+     */
+    public void admission(Admission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Buffer pools of all reactors, for inspecting their metrics.
+     * @return pools in order of reactors
+     */
+    public List<BufferPool> pools() {
+        List<BufferPool> pools = new ArrayList<>();
+        for (Reactor reactor : this.reactors)
+            pools.add(reactor.pool());
+        return pools;
+    }
+
+    /**
+     * Number of client connections currently open on all reactors.
+     * @return count of connections
+     */
+    public Integer connections() {
+        return connections(this.reactors);
+    }
+
+    private static Integer connections(Reactor[] reactors) {
+        Integer count = 0;
+        for (Reactor reactor : reactors)
+            count += reactor.load();
+        return count;
+    }
+
+    /**
+     * Check if server is running.
+     * @return if server is running
+     */
+    public Boolean running() {
+        return this.status;
+    }
+
+}
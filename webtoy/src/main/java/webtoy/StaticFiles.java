@@ -0,0 +1,283 @@
+package webtoy;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handler serving files under a directory, registered on a wildcard route like:
+ *
+ *   app.route("/static/*", new StaticFiles(Path.of("public")));
+ *
+ * Path captured by wildcard (or whole path of request on other routes) is looked up
+ * under root directory, index file is served for a directory. Paths leaving root in any
+ * way, like "..", encoded "%2e%2e", symbolic links or hidden files starting with ".",
+ * are answered with 404 as if not found.
+ *
+ * Files larger than maxCachedFileSize are sent with transferTo from file to socket, so
+ * their bytes are never copied through heap. Smaller ones are kept in memory once read,
+ * until they are modified or cache holds maxCachedBytes.
+ *
+ * Every file response has Content-Type found by extension, ETag and Last-Modified,
+ * requests with a matching If-None-Match or If-Modified-Since are answered with 304.
+ * Range requests are answered with parts of file by reactor, see Ranges.
+ */
+public class StaticFiles implements Handler {
+    public static final String DefaultContentType = "application/octet-stream";
+
+    public static final Map<String, String> ContentTypes = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("csv", "text/csv; charset=utf-8"),
+            Map.entry("md", "text/markdown; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"));
+
+    /**
+     * Content of a small file kept in memory, with attributes it was read with.
+     */
+    private static class Cached {
+        final ByteBuffer content;
+        final Instant modified;
+
+        Cached(ByteBuffer content, Instant modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+    }
+
+    private final Path root;
+    private String index;
+    private Duration maxAge;
+    private Integer maxCachedFileSize;
+    private long maxCachedBytes;
+    private final Map<Path, Cached> cache;
+    private final AtomicLong cachedBytes;
+
+    /**
+     * Serve files under given directory.
+     * @param root directory of files
+     * @throws IOException if root directory does not exist
+     */
+    public StaticFiles(Path root) throws IOException {
+        this.root = root.toRealPath();
+        if (!Files.isDirectory(this.root))
+            throw new IOException(String.format("%s is not a directory", root));
+        this.index = "index.html";
+        this.maxAge = null;
+        this.maxCachedFileSize = 64 * 1024;
+        this.maxCachedBytes = 16 * 1024 * 1024;
+        this.cache = new ConcurrentHashMap<>();
+        this.cachedBytes = new AtomicLong();
+    }
+
+    /**
+     * Name of file served for a directory, "index.html" by default.
+     * @param index name of file
+     * @return this handler
+     */
+    public StaticFiles index(String index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Let clients reuse files without asking again for given time, with Cache-Control max-age.
+     * @param maxAge of files, null for not sending Cache-Control
+     * @return this handler
+     */
+    public StaticFiles maxAge(Duration maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    /**
+     * Limits of files kept in memory, larger files are always sent from file.
+     * @param maxFileSize of a file kept in memory, 0 for keeping none
+     * @param maxBytes of all files kept in memory
+     * @return this handler
+     */
+    public StaticFiles cache(Integer maxFileSize, long maxBytes) {
+        this.maxCachedFileSize = maxFileSize;
+        this.maxCachedBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Bytes of files kept in memory.
+     */
+    public long cachedBytes() {
+        return this.cachedBytes.get();
+    }
+
+    @Override
+    public Response apply(Request request) {
+        Path file = this.resolve(request.params.getOrDefault(Router.Wildcard, request.path));
+        if (file == null)
+            return new Response(404);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                // Index could be a symbolic link too, so it is checked like any other file
+                file = file.resolve(this.index).toRealPath();
+                if (!file.startsWith(this.root))
+                    return new Response(404);
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (IOException error) {
+            return new Response(404);
+        }
+        if (!attributes.isRegularFile())
+            return new Response(404);
+
+        Instant modified = attributes.lastModifiedTime().toInstant().truncatedTo(ChronoUnit.SECONDS);
+        String etag = String.format("\"%x-%x\"", modified.getEpochSecond(), attributes.size());
+        Response response;
+        if (notModified(request, etag, modified)) {
+            response = new Response(304);
+        } else {
+            long size = attributes.size();
+            ByteBuffer content = size <= this.maxCachedFileSize ? this.read(file, modified, (int) size) : null;
+            response = content != null ? new Response(200, content) : new Response(200, file, 0, size);
+            response.headers.put("Content-Type", contentType(file));
+            response.headers.put("Accept-Ranges", "bytes");
+        }
+        response.headers.put("ETag", etag);
+        response.headers.put("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(ZonedDateTime.ofInstant(modified, ZoneOffset.UTC)));
+        if (this.maxAge != null)
+            response.headers.put("Cache-Control", String.format("public, max-age=%d", this.maxAge.toSeconds()));
+        return response;
+    }
+
+    /**
+     * Find file of request path under root.
+     * @param name path of file relative to root, percent-encoded
+     * @return real path of file, null if not found or not under root
+     */
+    Path resolve(String name) {
+        String decoded;
+        try {
+            decoded = URLDecoder.decode(name.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException error) {
+            return null;
+        }
+        if (decoded.indexOf('\0') != -1 || decoded.indexOf('\\') != -1)
+            return null;
+        for (String segment : decoded.split("/"))
+            if (segment.startsWith("."))
+                return null;
+        Path file = this.root.resolve(decoded.replaceFirst("^/+", "")).normalize();
+        if (!file.startsWith(this.root))
+            return null;
+        try {
+            file = file.toRealPath();
+        } catch (IOException error) {
+            return null;
+        }
+        return file.startsWith(this.root) ? file : null;
+    }
+
+    /**
+     * Content of a small file, read once and kept until file is modified.
+     * @return read-only content, null if file could not be read
+     */
+    private ByteBuffer read(Path file, Instant modified, Integer size) {
+        Cached cached = this.cache.get(file);
+        if (cached != null && cached.modified.equals(modified) && cached.content.remaining() == size)
+            return cached.content.duplicate();
+        ByteBuffer content;
+        try {
+            content = ByteBuffer.wrap(Files.readAllBytes(file)).asReadOnlyBuffer();
+        } catch (IOException error) {
+            return null;
+        }
+        if (cached != null && this.cache.remove(file, cached))
+            this.cachedBytes.addAndGet(-cached.content.remaining());
+        if (this.cachedBytes.addAndGet(content.remaining()) <= this.maxCachedBytes) {
+            Cached former = this.cache.put(file, new Cached(content, modified));
+            if (former != null)
+                this.cachedBytes.addAndGet(-former.content.remaining());
+        } else {
+            this.cachedBytes.addAndGet(-content.remaining());
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * If client already has this version of file, checked with If-None-Match first,
+     * then with If-Modified-Since if no If-None-Match given.
+     */
+    static Boolean notModified(Request request, String etag, Instant modified) {
+        String match = request.header("If-None-Match");
+        if (match != null) {
+            for (String tag : match.split(",")) {
+                tag = tag.strip();
+                if (tag.equals("*") || tag.replaceFirst("^W/", "").equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        String since = request.header("If-Modified-Since");
+        if (since == null)
+            return false;
+        try {
+            return !modified.isAfter(ZonedDateTime.parse(since.strip(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant());
+        } catch (DateTimeParseException error) {
+            return false;
+        }
+    }
+
+    /**
+     * Content type of file by its extension.
+     */
+    static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        Integer dot = name.lastIndexOf('.');
+        if (dot == -1)
+            return DefaultContentType;
+        return ContentTypes.getOrDefault(name.substring(dot + 1).toLowerCase(), DefaultContentType);
+    }
+}
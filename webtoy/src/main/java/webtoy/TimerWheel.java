@@ -0,0 +1,125 @@
+package webtoy;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A hashed timer wheel of connection timeouts, owned by a single reactor.
+ *
+ * Time is cut into ticks, and a connection whose timeout expires at some tick is linked
+ * into slot of that tick modulo number of slots. Connections are linked through their own
+ * fields, so arming, re-arming and cancelling a timeout allocate nothing and take O(1).
+ *
+ * Reactor selects no longer than until next tick while any timeout is armed, then expires
+ * all slots passed since last time. Deadlines further than a whole wheel away stay in
+ * their slot until a later round reaches them.
+ */
+class TimerWheel {
+    private final Connection[] slots;
+    private final long tick;
+    private final Integer mask;
+
+    // Tick of which slot is expired next
+    private long cursor;
+    private Integer size;
+
+    /**
+     * Make an empty wheel.
+     * @param tick length in nanoseconds
+     * @param slots count, a power of two
+     * @param now in nanoseconds
+     */
+    TimerWheel(long tick, Integer slots, long now) {
+        this.slots = new Connection[slots];
+        this.tick = tick;
+        this.mask = slots - 1;
+        this.cursor = Math.floorDiv(now, tick);
+        this.size = 0;
+    }
+
+    /**
+     * Arm timeout of connection, in place of the one armed before.
+     * @param connection to be timed out
+     * @param timeout what connection is waiting for
+     * @param deadline in nanoseconds
+     */
+    void schedule(Connection connection, Server.Timeout timeout, long deadline) {
+        this.cancel(connection);
+        Integer slot = (int) (Math.max(Math.floorDiv(deadline, this.tick), this.cursor) & this.mask);
+        connection.timeout = timeout;
+        connection.deadline = deadline;
+        connection.slot = slot;
+        connection.previous = null;
+        connection.following = this.slots[slot];
+        if (connection.following != null)
+            connection.following.previous = connection;
+        this.slots[slot] = connection;
+        this.size++;
+    }
+
+    /**
+     * Disarm timeout of connection if it has one.
+     * @param connection armed before
+     */
+    void cancel(Connection connection) {
+        if (connection.slot == null)
+            return;
+        if (connection.previous != null)
+            connection.previous.following = connection.following;
+        else
+            this.slots[connection.slot] = connection.following;
+        if (connection.following != null)
+            connection.following.previous = connection.previous;
+        connection.timeout = null;
+        connection.slot = null;
+        connection.previous = null;
+        connection.following = null;
+        this.size--;
+    }
+
+    /**
+     * Milliseconds reactor could wait in select before next tick.
+     * @param now in nanoseconds
+     * @return milliseconds, 0 for waiting without limit as no timeout is armed
+     */
+    long timeout(long now) {
+        if (this.size == 0)
+            return 0;
+        long wait = (this.cursor + 1) * this.tick - now;
+        return Math.max(1, (wait + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Expire all timeouts reached by now, connections are cancelled before handed over.
+     * @param now in nanoseconds
+     * @param expired called with every connection timed out and what it was waiting for
+     */
+    void expire(long now, BiConsumer<Connection, Server.Timeout> expired) {
+        long current = Math.floorDiv(now, this.tick);
+        if (this.size == 0) {
+            this.cursor = current;
+            return;
+        }
+        // A full turn visits every slot, later ticks would only visit them again
+        long last = Math.min(current, this.cursor + this.mask);
+        for (; this.cursor <= last; this.cursor++) {
+            Connection connection = this.slots[(int) (this.cursor & this.mask)];
+            while (connection != null) {
+                Connection following = connection.following;
+                if (connection.deadline - now <= 0) {
+                    Server.Timeout timeout = connection.timeout;
+                    this.cancel(connection);
+                    expired.accept(connection, timeout);
+                }
+                connection = following;
+            }
+        }
+        this.cursor = current;
+    }
+
+    /**
+     * Number of timeouts armed.
+     */
+    Integer size() {
+        return this.size;
+    }
+}
@@ -0,0 +1,1328 @@
+package webtoy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import webtoy.Request.InvalidRequest;
+
+/**
+ * Unit test for simple App.
+ */
+public class AppTest extends TestCase {
+    public AppTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppTest.class);
+    }
+
+    @org.junit.Test
+    public void testGETRequest() throws InvalidRequest {
+        String data = "GET /hello?test=1&other=0&incompleteIgnore HTTP/1.1\r\n\r\n";
+        Request request = new Request(data);
+        assertEquals(request.method, HTTPMethod.GET);
+        assertEquals(request.url, "/hello?test=1&other=0&incompleteIgnore");
+        assertEquals(request.path, "/hello");
+        assertEquals(request.args.get("test"), "1");
+        assertEquals(request.args.get("other"), "0");
+        assertFalse(request.args.containsKey("incompleteIgnore"));
+    }
+
+    @org.junit.Test
+    public void testPOSTRequest() throws InvalidRequest {
+        String headers = "POST /foo.php HTTP/1.1\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: 43\r\nCookie: PHPSESSID=r2t5uvjq435r4q7ib3vtdjq120\r\n\r\n";
+        String body = "first_name=John&last_name=Doe&action=Submit";
+        Request request = new Request(headers);
+        request.parseBody(body);
+        assertEquals(request.cookies.get("PHPSESSID"), "r2t5uvjq435r4q7ib3vtdjq120");
+        assertEquals(request.forms.get("first_name"), "John");
+        assertEquals(request.forms.get("action"), "Submit");
+    }
+
+    @org.junit.Test
+    public void testApplicationRequest() throws InvalidRequest {
+        Application app = new Application();
+        app.route("/hello", request -> new Response(request.args.getOrDefault("name", "anonymous")));
+        Request request = new Request("GET /hello?name=guiqiqi HTTP/1.1\r\n\r\n");
+        Response response = app.respond(request);
+        assertEquals(response.code, Integer.valueOf(200));
+        assertEquals(response.content, "guiqiqi");
+    }
+
+    /**
+     * Please ensure your localhost 9999 is in free :)
+     * @throws InterruptedException 
+     */
+    @org.junit.Test
+    public void testServerLevelResponse() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/hello", request -> {
+            String user = request.args.getOrDefault("name", "anonymous");
+            return new Response(String.format("Hello %s!", user));
+        });
+        Server server = new Server("localhost", 9999, app);
+        new Thread(server::start).start();
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://127.0.0.1:9999/hello?name=guiqiqi"))
+                .build();
+        HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+        assertEquals(response.body(), "Hello guiqiqi!");
+        server.close();
+    }
+
+    /**
+     * Every reactor serves its own connections, close() should stop all of them.
+     */
+    @org.junit.Test
+    public void testMultiReactorServer() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/thread", request -> new Response(Thread.currentThread().getName()));
+        Server server = new Server("localhost", 9998, app, 4, Server.Balance.LEAST_LOADED);
+        Thread acceptor = new Thread(server::start);
+        acceptor.start();
+        Set<String> threads = new HashSet<>();
+        for (Integer index = 0; index < 8; index++) {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9998/thread"))
+                    .build();
+            threads.add(client.send(request, BodyHandlers.ofString()).body());
+        }
+        assertTrue(threads.size() > 1);
+        for (String thread : threads)
+            assertTrue(thread.startsWith("webtoy-reactor-"));
+        server.close();
+        acceptor.join(1000);
+        assertFalse(acceptor.isAlive());
+        assertFalse(server.running());
+    }
+
+    /**
+     * Pipelined requests on one connection are answered in order, "Connection: close" ends it.
+     */
+    @org.junit.Test
+    public void testPipelinedKeepAliveRequests() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/echo", request -> new Response(request.args.getOrDefault("n", "")));
+        Server server = new Server("localhost", 9997, app);
+        new Thread(server::start).start();
+        try (Socket socket = new Socket("127.0.0.1", 9997)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /echo?n=first HTTP/1.1\r\n\r\n"
+                    + "GET /echo?n=second HTTP/1.1\r\n\r\n").getBytes());
+            output.flush();
+            Thread.sleep(100);
+            output.write("GET /echo?n=third HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+            output.flush();
+            String responses = new String(socket.getInputStream().readAllBytes());
+            assertTrue(responses.indexOf("first") < responses.indexOf("second"));
+            assertTrue(responses.indexOf("second") < responses.indexOf("third"));
+            assertTrue(responses.contains("Connection: close"));
+            assertEquals(responses.split("HTTP/1.1 200 OK").length, 4);
+        }
+
+        // Response shared by handler is not changed by closing a connection with it
+        Response shared = new Response("shared");
+        app.route("/shared", request -> shared);
+        for (Integer index = 0; index < 2; index++) {
+            try (Socket socket = new Socket("127.0.0.1", 9997)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("GET /shared HTTP/1.1\r\n\r\n"
+                        + "GET /shared HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+                String responses = new String(socket.getInputStream().readAllBytes());
+                assertEquals(responses.split("HTTP/1.1 200 OK").length, 3);
+                assertEquals(responses.indexOf("Connection: close"), responses.lastIndexOf("Connection: close"));
+                assertTrue(responses.indexOf("Connection: close") > responses.lastIndexOf("HTTP/1.1 200 OK"));
+            }
+        }
+        assertFalse(shared.headers.containsKey("Connection"));
+        server.close();
+    }
+
+    /**
+     * Header and body of a request may arrive in several partial reads.
+     */
+    @org.junit.Test
+    public void testPartialRequestReads() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/form", HTTPMethod.POST, request -> new Response(request.forms.get("name")));
+        Server server = new Server("localhost", 9996, app);
+        new Thread(server::start).start();
+        String[] fragments = {
+                "POST /form HTTP/1.1\r\nContent-Type: application/x-www-",
+                "form-urlencoded\r\nContent-Length: 12\r\nConnection: close\r",
+                "\n\r\nname=gu",
+                "iqiqi" };
+        try (Socket socket = new Socket("127.0.0.1", 9996)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            for (String fragment : fragments) {
+                output.write(fragment.getBytes());
+                output.flush();
+                Thread.sleep(50);
+            }
+            String response = new String(socket.getInputStream().readAllBytes());
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.endsWith("\r\n\r\nguiqiqi"));
+        }
+        server.close();
+    }
+
+    @org.junit.Test
+    public void testByteLevelRequestParser() throws InvalidRequest {
+        byte[] data = ("PUT /items?id=7 HTTP/1.1\r\ncontent-length: 5\r\nX-Note:a: b \r\n\r\nhello")
+                .getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, data.length - 5);
+        Request request = new Request(buffer);
+        assertEquals(buffer.position(), 0);
+        assertEquals(request.method, HTTPMethod.PUT);
+        assertEquals(request.path, "/items");
+        assertEquals(request.args.get("id"), "7");
+        assertEquals(request.bodysize, Integer.valueOf(5));
+        assertEquals(request.header("Content-Length"), "5");
+        assertEquals(request.header("x-note"), "a: b");
+        assertNull(request.header("Host"));
+        request.parseBody(ByteBuffer.wrap(data, data.length - 5, 5));
+        assertEquals(request.body, "hello");
+
+        for (String invalid : new String[] { "GET /a HTTP/1.0\r\n\r\n", "FETCH /a HTTP/1.1\r\n\r\n",
+                "GET /a  HTTP/1.1\r\n\r\n", "GET /a HTTP/1.1\r\nBroken\r\n\r\n",
+                "POST /a HTTP/1.1\r\nContent-Length: -1\r\n\r\n" }) {
+            try {
+                new Request(invalid);
+                fail(invalid);
+            } catch (InvalidRequest error) {
+                continue;
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testLazyRequestViews() throws InvalidRequest {
+        byte[] data = ("GET /a?x=1&y=a%20b HTTP/1.1\r\nHost: localhost\r\nX-Id: 1\r\nX-Id: 2\r\n"
+                + "cookie: sid=abc; theme=dark\r\n\r\n").getBytes();
+        Request request = new Request(ByteBuffer.wrap(data));
+        assertEquals(request.headers.get("X-Id"), "2");
+        assertNull(request.headers.get("host"));
+        assertFalse(request.headers.containsKey("cookie"));
+        assertEquals(request.headers.size(), 2);
+        assertEquals(request.args.get("y"), "a b");
+        assertEquals(request.cookies.get("theme"), "dark");
+        assertTrue(request.forms.isEmpty());
+        request.args.put("z", "3");
+        assertEquals(new java.util.TreeMap<>(request.args).toString(), "{x=1, y=a b, z=3}");
+
+        // Reading only path decodes nothing, so costs no more than parsing
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory
+                .getThreadMXBean();
+        long lazy = Long.MAX_VALUE;
+        long eager = Long.MAX_VALUE;
+        for (Integer round = 0; round < 5; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (Integer index = 0; index < 1000; index++)
+                new Request(ByteBuffer.wrap(data)).path.length();
+            long between = threads.getCurrentThreadAllocatedBytes();
+            for (Integer index = 0; index < 1000; index++) {
+                Request decoded = new Request(ByteBuffer.wrap(data));
+                decoded.headers.size();
+                decoded.args.size();
+                decoded.cookies.size();
+            }
+            long after = threads.getCurrentThreadAllocatedBytes();
+            lazy = Math.min(lazy, between - before);
+            eager = Math.min(eager, after - between);
+        }
+        assertTrue(lazy + " < " + eager, lazy * 2 < eager);
+    }
+
+    @org.junit.Test
+    public void testRadixRouter() throws InvalidRequest {
+        Application app = new Application();
+        app.route("/users", request -> new Response("list"));
+        app.route("/users/me", request -> new Response("me"));
+        app.route("/users/{id:int}", request -> new Response("id " + request.params.get("id")));
+        app.route("/users/{name}", request -> new Response("name " + request.params.get("name")));
+        app.route("/users/{name}/posts/{post}", List.of(HTTPMethod.GET, HTTPMethod.DELETE),
+                request -> new Response(request.params.get("name") + " " + request.params.get("post")));
+        app.route("/useful", request -> new Response("useful"));
+        app.route("/static/*", request -> new Response("file " + request.params.get("*")));
+
+        String[][] cases = {
+                { "GET /users HTTP/1.1", "list" },
+                { "GET /users/me HTTP/1.1", "me" },
+                { "GET /users/42 HTTP/1.1", "id 42" },
+                { "GET /users/guiqiqi HTTP/1.1", "name guiqiqi" },
+                { "GET /users/42/posts/7 HTTP/1.1", "42 7" },
+                { "GET /useful HTTP/1.1", "useful" },
+                { "GET /static/css/main.css?v=1 HTTP/1.1", "file css/main.css" },
+                { "GET /static/ HTTP/1.1", "file " },
+        };
+        for (String[] pair : cases) {
+            Response response = app.respond(new Request(pair[0] + "\r\n\r\n"));
+            assertEquals(response.content, pair[1]);
+        }
+
+        assertEquals(app.respond(new Request("GET /use HTTP/1.1\r\n\r\n")).code, Integer.valueOf(404));
+        assertEquals(app.respond(new Request("GET /users/ HTTP/1.1\r\n\r\n")).code, Integer.valueOf(404));
+        Response response = app.respond(new Request("HEAD /users/a/posts/b HTTP/1.1\r\n\r\n"));
+        assertEquals(response.code, Integer.valueOf(405));
+        assertEquals(response.headers.get("Allow"), "GET, DELETE");
+
+        Request request = new Request("GET /users/me HTTP/1.1\r\n\r\n");
+        app.respond(request);
+        assertTrue(request.params.isEmpty());
+
+        try {
+            app.route("/users/{user}", request2 -> new Response("conflict"));
+            fail("conflicting parameter name");
+        } catch (IllegalArgumentException error) {
+            assertTrue(error.getMessage().contains("{name}"));
+        }
+    }
+
+    @org.junit.Test
+    public void testBufferPool() {
+        BufferPool pool = new BufferPool(64 * 1024, 32L * 1024, false);
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(10000);
+        ByteBuffer huge = pool.acquire(100000);
+        assertEquals(small.capacity(), 8192);
+        assertEquals(large.capacity(), 16384);
+        assertEquals(huge.capacity(), 100000);
+        assertEquals(pool.misses(), 3);
+        pool.release(small);
+        pool.release(large);
+        pool.release(huge);
+        assertEquals(pool.held(), 8192 + 16384);
+        assertSame(pool.acquire(8000), small);
+        assertEquals(pool.hits(), 1);
+        assertEquals(pool.leased(), 1);
+        pool.release(small);
+
+        // Pool keeps at most 32K of idle buffers
+        pool.release(pool.acquire(16384 + 1));
+        assertEquals(pool.held(), 8192 + 16384);
+        assertEquals(pool.leased(), 0);
+    }
+
+    /**
+     * Buffers taken by connections from pools of reactors must be given back once closed.
+     */
+    @org.junit.Test
+    public void testServerBuffersNotLeaked() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/echo", HTTPMethod.POST, request -> new Response(request.body));
+        Server.DirectBuffers = true;
+        Server server = new Server("localhost", 9995, app, 2);
+        Server.DirectBuffers = false;
+        new Thread(server::start).start();
+        HttpClient client = HttpClient.newHttpClient();
+        String body = "x".repeat(100000);
+        for (Integer index = 0; index < 4; index++) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9995/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            assertEquals(client.send(request, BodyHandlers.ofString()).body(), body);
+        }
+        server.close();
+        long hits = 0;
+        for (BufferPool pool : server.pools()) {
+            assertEquals(pool.leased(), 0);
+            hits += pool.hits();
+        }
+        assertTrue(hits > 0);
+    }
+
+    /**
+     * Large responses to a slow client are queued and written completely through OP_WRITE.
+     */
+    @org.junit.Test
+    public void testLargeResponsesToSlowClient() throws IOException, InterruptedException {
+        String content = "y".repeat(4 * 1024 * 1024);
+        Application app = new Application();
+        app.route("/large", request -> new Response(content));
+        Server server = new Server("localhost", 9994, app);
+        new Thread(server::start).start();
+        try (Socket socket = new Socket("127.0.0.1", 9994)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /large HTTP/1.1\r\n\r\nGET /large HTTP/1.1\r\n\r\n"
+                    + "GET /large HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            output.flush();
+            Thread.sleep(200);
+            String responses = new String(socket.getInputStream().readAllBytes());
+            String[] parts = responses.split("HTTP/1.1 200 OK");
+            assertEquals(parts.length, 4);
+            for (Integer index = 1; index < parts.length; index++)
+                assertTrue(parts[index].endsWith("\r\n\r\n" + content));
+        }
+        server.close();
+    }
+
+    @org.junit.Test
+    public void testResponseSerialization() {
+        Response response = new Response(201, "héllo");
+        response.headers.put("Content-Type", "text/plain; charset=utf-8");
+        String text = response.toString();
+        assertTrue(text.startsWith("HTTP/1.1 201 Created\r\n"));
+        assertTrue(text.contains("Content-Length: 6\r\n"));
+        assertTrue(text.contains("Content-Type: text/plain; charset=utf-8\r\n"));
+        assertTrue(text.endsWith("\r\n\r\nhéllo"));
+
+        byte[] raw = { 0, 1, 2, (byte) 255 };
+        Response binary = new Response(200, raw);
+        assertNull(binary.content);
+        assertEquals(binary.length(), 4);
+        ByteBuffer buffer = ByteBuffer.allocate(binary.headSize() + (int) binary.length());
+        binary.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(buffer.get(buffer.limit() - 1), (byte) 255);
+        assertTrue(new String(buffer.array()).contains("Content-Type: text/html\r\n"));
+
+        // Length of text counts bytes it is encoded to, unpaired surrogates included
+        for (String content : new String[] { "aé€\uD83D\uDE00", "a\uD83D", "\uDE00b", "\uDE00\uD83D" })
+            assertEquals(content, new Response(content).length(),
+                    content.getBytes(StandardCharsets.UTF_8).length);
+
+        assertTrue(Response.InvalidRequestResponse.isReadOnly());
+        String canned = StandardCharsets.US_ASCII.decode(Response.HeaderTooLargeResponse.duplicate()).toString();
+        assertTrue(canned.startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"));
+        assertTrue(canned.contains("Connection: close\r\n"));
+        assertTrue(new Response(799).toString().startsWith("HTTP/1.1 799 unknown\r\n"));
+    }
+
+    /**
+     * Handlers on executor do not stall reactor, and pipelined responses keep their order.
+     */
+    @org.junit.Test
+    public void testHandlersOnVirtualThreads() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.useVirtualThreads();
+        app.route("/sleep", request -> {
+            try {
+                Thread.sleep(Integer.valueOf(request.args.get("ms")));
+            } catch (InterruptedException error) {
+                return new Response(500);
+            }
+            return new Response(request.args.get("ms"));
+        });
+        app.route("/where", request -> new Response(Thread.currentThread().getName())).inline();
+        Server server = new Server("localhost", 9993, app);
+        new Thread(server::start).start();
+        try (Socket socket = new Socket("127.0.0.1", 9993)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /sleep?ms=1000 HTTP/1.1\r\n\r\n"
+                    + "GET /sleep?ms=1 HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            output.flush();
+
+            // Another connection is served while handler above sleeps
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9993/where"))
+                    .build();
+            long started = System.nanoTime();
+            assertEquals(client.send(request, BodyHandlers.ofString()).body(), "webtoy-reactor-0");
+            assertTrue(System.nanoTime() - started < 800_000_000L);
+
+            String responses = new String(socket.getInputStream().readAllBytes());
+            assertTrue(responses.indexOf("\r\n\r\n1000HTTP/1.1 200 OK") > 0);
+            assertTrue(responses.endsWith("\r\n\r\n1"));
+            assertTrue(responses.contains("Connection: close"));
+        }
+
+        // A rejected request is answered after responses of requests before it
+        try (Socket socket = new Socket("127.0.0.1", 9993)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET /sleep?ms=300 HTTP/1.1\r\n\r\n"
+                    + "GET /sleep?ms=1 HTTP/1.1\r\nX-Large: " + "x".repeat(Server.MaxRequestHeaderSize)
+                    + "\r\n\r\n").getBytes());
+            String responses = new String(socket.getInputStream().readAllBytes());
+            assertTrue(responses.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(responses.indexOf("\r\n\r\n300HTTP/1.1 431") > 0);
+        }
+        server.close();
+    }
+
+    /**
+     * Async handlers are written once their future completes, or 504 once timeout passed.
+     */
+    @org.junit.Test
+    public void testAsyncHandlers() throws IOException, InterruptedException, InvalidRequest {
+        Application app = new Application();
+        Executor later = CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS);
+        app.routeAsync("/later", request -> CompletableFuture.supplyAsync(() -> new Response("done"), later));
+        app.routeAsync("/never", request -> new CompletableFuture<>()).timeout(Duration.ofMillis(100));
+        app.routeAsync("/broken", request -> CompletableFuture.failedFuture(new IOException("backend down")));
+        assertEquals(app.respond(new Request("GET /never HTTP/1.1\r\n\r\n")).code, Integer.valueOf(504));
+
+        Server server = new Server("localhost", 9992, app);
+        new Thread(server::start).start();
+        HttpClient client = HttpClient.newHttpClient();
+        String[][] expected = { { "/later", "200" }, { "/never", "504" }, { "/broken", "502" } };
+        for (String[] pair : expected) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9992" + pair[0]))
+                    .build();
+            HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+            assertEquals(Integer.toString(response.statusCode()), pair[1]);
+        }
+        server.close();
+    }
+
+    /**
+     * Access log is written by its own thread, full ring buffer drops entries and files rotate by size.
+     */
+    @org.junit.Test
+    public void testAccessLog() throws IOException, InterruptedException, InvalidRequest {
+        Path directory = Files.createTempDirectory("webtoy-log");
+        Path path = directory.resolve("access.log");
+        Application app = new Application();
+        app.route("/hello", request -> new Response("hello"));
+        Server server = new Server("localhost", 9991, app);
+        server.accessLog(new AccessLog(path).format("%a %m %u %s %b %%"));
+        new Thread(server::start).start();
+        HttpClient client = HttpClient.newHttpClient();
+        for (String url : new String[] { "/hello?n=1", "/missing" }) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9991" + url))
+                    .build();
+            client.send(request, BodyHandlers.ofString());
+        }
+        // Log set on a running server is started at once
+        AccessLog late = new AccessLog(directory.resolve("late.log"));
+        server.accessLog(late);
+        client.send(HttpRequest.newBuilder().uri(URI.create("http://127.0.0.1:9991/hello")).build(),
+                BodyHandlers.ofString());
+        for (Integer wait = 0; wait < 100 && late.written() < 1; wait++)
+            Thread.sleep(50);
+        assertEquals(late.written(), 1);
+        server.close();
+        List<String> lines = Files.readAllLines(path);
+        assertEquals(lines.size(), 2);
+        assertTrue(lines.get(0).startsWith("127.0.0.1:"));
+        assertTrue(lines.get(0).matches("127\\.0\\.0\\.1:\\d+ GET /hello\\?n=1 200 \\d+ %"));
+        assertTrue(lines.get(1).matches(".* GET /missing 404 \\d+ %"));
+
+        AccessLog full = new AccessLog(directory.resolve("full.log"), 2);
+        Request request = new Request("GET /full HTTP/1.1\r\n\r\n");
+        for (Integer index = 0; index < 3; index++)
+            full.log("127.0.0.1:1", request, 200, 0);
+        assertEquals(full.dropped(), 1);
+        full.close();
+        assertEquals(Files.readAllLines(directory.resolve("full.log")).size(), 2);
+
+        AccessLog rotating = new AccessLog(directory.resolve("rotating.log")).rotate(100, null);
+        rotating.start();
+        for (Integer index = 0; index < 20; index++) {
+            rotating.log("127.0.0.1:1", request, 200, index);
+            Thread.sleep(5);
+        }
+        rotating.close();
+        assertEquals(rotating.written(), 20);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.filter(file -> file.getFileName().toString().startsWith("rotating.log.")).count() > 0);
+        }
+    }
+
+    @org.junit.Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value * 1000);
+        assertEquals(histogram.count(), 1000);
+        assertEquals(histogram.sum(), 500500000);
+        assertTrue(histogram.quantile(0) >= 1000 && histogram.quantile(0) < 1000 + 1000 / 16);
+        for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+            double error = Math.abs(histogram.quantile(quantile) - quantile * 1000000) / (quantile * 1000000);
+            assertTrue(error < 1.0 / 16);
+        }
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(histogram.quantile(1), Histogram.MaxValue);
+    }
+
+    /**
+     * Metrics count requests by status and route, and are served in Prometheus format.
+     */
+    @org.junit.Test
+    public void testMetricsEndpoint() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/users/{id}", request -> new Response(request.params.get("id")));
+        Server server = new Server("localhost", 9990, app, 2);
+        app.route("/metrics", server.metrics.handler());
+        new Thread(server::start).start();
+        HttpClient client = HttpClient.newHttpClient();
+        for (String url : new String[] { "/users/1", "/users/2", "/users/3", "/missing" }) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://127.0.0.1:9990" + url))
+                    .build();
+            client.send(request, BodyHandlers.ofString());
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://127.0.0.1:9990/metrics"))
+                .build();
+        HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+        String text = response.body();
+        assertEquals(response.headers().firstValue("Content-Type").get(), Metrics.ContentType);
+        assertTrue(text.contains("webtoy_requests_total{code=\"200\"} 3\n"));
+        assertTrue(text.contains("webtoy_requests_total{code=\"404\"} 1\n"));
+        assertTrue(text.contains("webtoy_request_duration_seconds_count{route=\"/users/{id}\"} 3\n"));
+        assertTrue(text.contains("webtoy_request_duration_seconds_count{route=\"unmatched\"} 1\n"));
+        assertTrue(text.contains("webtoy_request_duration_seconds{route=\"/users/{id}\",quantile=\"0.99\"} "));
+        assertTrue(text.contains("webtoy_connections 1\n"));
+        assertTrue(server.metrics.received() > 0);
+        assertTrue(server.metrics.sent() > 0);
+        server.close();
+    }
+
+    /**
+     * Every phase of serving a request is recorded as a JFR event once enabled.
+     */
+    @org.junit.Test
+    public void testFlightRecorderEvents() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/hello", request -> new Response("hello"));
+        Server server = new Server("localhost", 9989, app);
+        new Thread(server::start).start();
+        Path file = Files.createTempFile("webtoy", ".jfr");
+        String[] names = { "webtoy.ConnectionAccept", "webtoy.ConnectionClose", "webtoy.SocketRead",
+                "webtoy.HeaderScan", "webtoy.RequestParse", "webtoy.RouteMatch", "webtoy.HandlerApply",
+                "webtoy.ResponseSerialize", "webtoy.SocketWrite" };
+        try (Recording recording = new Recording()) {
+            for (String name : names)
+                recording.enable(name).withoutThreshold();
+            recording.start();
+            try (Socket socket = new Socket("127.0.0.1", 9989)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET /hello HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+                socket.getInputStream().readAllBytes();
+            }
+            Thread.sleep(100);
+            recording.stop();
+            recording.dump(file);
+        }
+        server.close();
+        Set<String> recorded = new HashSet<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file))
+            recorded.add(event.getEventType().getName());
+        for (String name : names)
+            assertTrue(name, recorded.contains(name));
+        Files.delete(file);
+    }
+
+    /**
+     * Cached routes call handler once for same path and args until invalidated.
+     */
+    @org.junit.Test
+    public void testResponseCache() throws IOException, InterruptedException, InvalidRequest {
+        Application app = new Application();
+        AtomicInteger calls = new AtomicInteger();
+        app.route("/cached", request -> new Response("call " + calls.incrementAndGet()))
+                .cache(Duration.ofMinutes(1), "Accept-Language");
+        app.route("/private", request -> {
+            Response response = new Response("call " + calls.incrementAndGet());
+            response.headers.put("Cache-Control", "private");
+            return response;
+        }).cache(Duration.ofMinutes(1));
+
+        assertEquals(app.respond(new Request("GET /cached?a=1&b=2 HTTP/1.1\r\n\r\n")).content, "call 1");
+        assertEquals(app.respond(new Request("GET /cached?b=2&a=1 HTTP/1.1\r\n\r\n")).content, "call 1");
+        assertEquals(app.respond(new Request("GET /cached?a=1&b=2 HTTP/1.1\r\nAccept-Language: fr\r\n\r\n")).content,
+                "call 2");
+        assertEquals(app.respond(new Request("GET /cached?a=1&b=2 HTTP/1.1\r\nCache-Control: no-cache\r\n\r\n")).content,
+                "call 3");
+        assertEquals(app.respond(new Request("GET /cached?a=1&b=2 HTTP/1.1\r\n\r\n")).content, "call 3");
+        assertEquals(app.respond(new Request("GET /private HTTP/1.1\r\n\r\n")).content, "call 4");
+        assertEquals(app.respond(new Request("GET /private HTTP/1.1\r\n\r\n")).content, "call 5");
+        assertEquals(app.cache().invalidate("/cached"), Integer.valueOf(2));
+        assertEquals(app.respond(new Request("GET /cached?a=1&b=2 HTTP/1.1\r\n\r\n")).content, "call 6");
+        assertEquals(app.cache().hits(), 2);
+
+        // Decoded "&" and "=" in an arg could not make key of other args
+        assertEquals(app.respond(new Request("GET /cached?a=x&c=d HTTP/1.1\r\n\r\n")).content, "call 7");
+        assertEquals(app.respond(new Request("GET /cached?a=x%26c%3Dd HTTP/1.1\r\n\r\n")).content, "call 8");
+        assertFalse(ResponseCache.key(new Request("GET /cached?a=x&c=d HTTP/1.1\r\n\r\n"), List.of())
+                .equals(ResponseCache.key(new Request("GET /cached?a=x%26c%3Dd HTTP/1.1\r\n\r\n"), List.of())));
+
+        ResponseCache small = new ResponseCache(16 * 1024);
+        for (Integer index = 0; index < 100; index++)
+            small.put("GET /" + index, "/" + index, new Response("x".repeat(200)), Duration.ofMinutes(1));
+        assertTrue(small.evictions() > 0);
+        assertTrue(small.bytes() <= 16 * 1024);
+        assertNotNull(small.get("GET /99"));
+        assertNull(small.get("GET /0"));
+
+        // Huge max-age is kept for a year instead of overflowing
+        Response forever = new Response("forever");
+        forever.headers.put("Cache-Control", "max-age=9999999999999");
+        small.put("GET /forever", "/forever", forever, Duration.ofMinutes(1));
+        assertNotNull(small.get("GET /forever"));
+
+        // Cached response is written as it is, with Connection header put in when closing
+        Server server = new Server("localhost", 9988, app);
+        new Thread(server::start).start();
+        try (Socket socket = new Socket("127.0.0.1", 9988)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /cached?a=1&b=2 HTTP/1.1\r\n\r\n"
+                    + "GET /cached?a=1&b=2 HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            output.flush();
+            String responses = new String(socket.getInputStream().readAllBytes());
+            assertEquals(responses.split("\r\n\r\ncall 6", -1).length, 3);
+            assertTrue(responses.endsWith("Connection: close\r\n\r\ncall 6"));
+        }
+        server.close();
+        assertEquals(calls.get(), 8);
+    }
+
+    /**
+     * Identical concurrent requests of a coalesced route share one handler call,
+     * requests waiting too long call handler by themselves.
+     */
+    @org.junit.Test
+    public void testCoalescedRequests() throws InterruptedException, InvalidRequest {
+        Application app = new Application();
+        app.useVirtualThreads();
+        AtomicInteger calls = new AtomicInteger();
+        Handler slow = request -> {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            return new Response("value of " + request.args.get("key"));
+        };
+        app.route("/shared", slow).coalesce(Duration.ofSeconds(5));
+        app.route("/impatient", slow).coalesce(Duration.ofMillis(50));
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        for (Integer index = 0; index < 20; index++) {
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            app.respond(new Request("GET /shared?key=a HTTP/1.1\r\n\r\n"), response::complete);
+            responses.add(response);
+        }
+        for (CompletableFuture<Response> response : responses)
+            assertEquals(response.join().content, "value of a");
+        assertEquals(calls.get(), 1);
+
+        // Synchronous respond coalesces the same way
+        calls.set(0);
+        List<Thread> threads = new ArrayList<>();
+        for (Integer index = 0; index < 10; index++)
+            threads.add(Thread.startVirtualThread(() -> {
+                try {
+                    assertEquals(app.respond(new Request("GET /shared?key=b HTTP/1.1\r\n\r\n")).content,
+                            "value of b");
+                } catch (InvalidRequest error) {
+                    fail(error.getMessage());
+                }
+            }));
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(calls.get(), 1);
+
+        calls.set(0);
+        responses.clear();
+        for (Integer index = 0; index < 3; index++) {
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            app.respond(new Request("GET /impatient?key=c HTTP/1.1\r\n\r\n"), response::complete);
+            responses.add(response);
+        }
+        for (CompletableFuture<Response> response : responses)
+            assertEquals(response.join().content, "value of c");
+        assertEquals(calls.get(), 3);
+    }
+
+    /**
+     * Responses are compressed with encoding accepted by client, only if worth compressing.
+     */
+    @org.junit.Test
+    public void testCompression() throws IOException, InterruptedException {
+        assertEquals(Compression.negotiate("gzip, deflate, br"), "gzip");
+        assertEquals(Compression.negotiate("deflate;q=0.5, gzip;q=0"), "deflate");
+        assertEquals(Compression.negotiate("*"), "gzip");
+        assertEquals(Compression.negotiate("gzip;q=0.1, deflate;q=1"), "deflate");
+        assertEquals(Compression.negotiate("deflate, *;q=0.5"), "deflate");
+        assertEquals(Compression.negotiate("gzip;q=0, *"), "deflate");
+        assertEquals(Compression.negotiate("x-gzip-like, *;q=0"), null);
+        assertEquals(Compression.negotiate("identity"), null);
+        assertEquals(Compression.negotiate(null), null);
+
+        String text = "webtoy compresses text bodies. ".repeat(200);
+        Application app = new Application();
+        app.route("/text", request -> new Response(text));
+        app.route("/small", request -> new Response("tiny"));
+        app.route("/image", request -> {
+            Response response = new Response(200, text.getBytes(StandardCharsets.UTF_8));
+            response.headers.put("Content-Type", "image/png");
+            return response;
+        });
+        app.route("/cached", request -> new Response(text)).cache(Duration.ofMinutes(1));
+        Server server = new Server("localhost", 9987, app);
+        server.accessLog(null);
+        server.compression(new Compression().precompress(true));
+        new Thread(server::start).start();
+
+        HttpClient client = HttpClient.newHttpClient();
+        for (String encoding : new String[] { "gzip", "deflate" }) {
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9987/text"))
+                    .header("Accept-Encoding", encoding).build(), BodyHandlers.ofByteArray());
+            assertEquals(response.headers().firstValue("Content-Encoding").get(), encoding);
+            assertEquals(response.headers().firstValue("Vary").get(), "Accept-Encoding");
+            assertTrue(response.body().length < text.length() / 10);
+            ByteArrayInputStream compressed = new ByteArrayInputStream(response.body());
+            byte[] body = (encoding.equals("gzip") ? new GZIPInputStream(compressed)
+                    : new InflaterInputStream(compressed)).readAllBytes();
+            assertEquals(new String(body, StandardCharsets.UTF_8), text);
+        }
+
+        HttpResponse<String> plain = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9987/text"))
+                .build(), BodyHandlers.ofString());
+        assertEquals(plain.body(), text);
+        assertEquals(plain.headers().firstValue("Vary").get(), "Accept-Encoding");
+        assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty());
+        for (String path : new String[] { "/small", "/image" }) {
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9987" + path))
+                    .header("Accept-Encoding", "gzip").build(), BodyHandlers.ofByteArray());
+            assertTrue(response.headers().firstValue("Content-Encoding").isEmpty());
+            assertTrue(response.headers().firstValue("Vary").isEmpty());
+        }
+
+        // Cached response is compressed once and kept
+        for (Integer index = 0; index < 3; index++) {
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9987/cached"))
+                    .header("Accept-Encoding", "gzip").build(), BodyHandlers.ofByteArray());
+            assertEquals(new String(new GZIPInputStream(new ByteArrayInputStream(response.body())).readAllBytes(),
+                    StandardCharsets.UTF_8), text);
+        }
+        Response cached = app.cache().get("GET /cached");
+        assertNotNull(cached.variant("gzip").serialized());
+        assertEquals(cached.variant("gzip").headers.get("Content-Encoding"), "gzip");
+
+        // Plain variant is serialized once too, and a closing connection gets it with Connection: close
+        HttpResponse<String> uncompressed = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9987/cached"))
+                .build(), BodyHandlers.ofString());
+        assertEquals(uncompressed.body(), text);
+        assertEquals(uncompressed.headers().firstValue("Vary").get(), "Accept-Encoding");
+        assertNotNull(cached.variant(null).serialized());
+        try (Socket socket = new Socket("127.0.0.1", 9987)) {
+            socket.getOutputStream().write("GET /cached HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(response.contains("Vary: Accept-Encoding\r\n"));
+            assertTrue(response.contains("Connection: close\r\n"));
+            assertTrue(response.endsWith(text));
+        }
+        server.close();
+    }
+
+    /**
+     * Static files are served with validators, large ones from file, never outside root.
+     */
+    @org.junit.Test
+    public void testStaticFiles() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("webtoy-static");
+        Path root = Files.createDirectories(directory.resolve("public"));
+        Files.writeString(root.resolve("style.css"), "body { color: red; }");
+        byte[] large = new byte[300 * 1024];
+        for (Integer index = 0; index < large.length; index++)
+            large[index] = (byte) (index * 31);
+        Files.write(root.resolve("video.mp4"), large);
+        Files.createDirectories(root.resolve("docs"));
+        Files.writeString(root.resolve("docs/index.html"), "<h1>docs</h1>");
+        Files.writeString(root.resolve(".secret"), "hidden");
+        Files.writeString(directory.resolve("outside.txt"), "outside");
+        Files.createSymbolicLink(root.resolve("link.txt"), directory.resolve("outside.txt"));
+        Files.createDirectories(root.resolve("escape"));
+        Files.createSymbolicLink(root.resolve("escape/index.html"), directory.resolve("outside.txt"));
+        // Sparse file larger than 2G, never read whole
+        long huge = 3L * 1024 * 1024 * 1024;
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(root.resolve("huge.bin").toFile(), "rw")) {
+            file.setLength(huge);
+        }
+
+        Application app = new Application();
+        StaticFiles files = new StaticFiles(root).maxAge(Duration.ofHours(1));
+        app.route("/static/*", files);
+        Server server = new Server("localhost", 9986, app);
+        server.accessLog(null);
+        new Thread(server::start).start();
+
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> css = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/style.css"))
+                .build(), BodyHandlers.ofString());
+        assertEquals(css.statusCode(), 200);
+        assertEquals(css.body(), "body { color: red; }");
+        assertEquals(css.headers().firstValue("Content-Type").get(), "text/css; charset=utf-8");
+        assertEquals(css.headers().firstValue("Cache-Control").get(), "public, max-age=3600");
+        String etag = css.headers().firstValue("ETag").get();
+        String modified = css.headers().firstValue("Last-Modified").get();
+        assertTrue(files.cachedBytes() > 0);
+
+        HttpResponse<String> cached = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/style.css"))
+                .header("If-None-Match", etag).build(), BodyHandlers.ofString());
+        assertEquals(cached.statusCode(), 304);
+        assertEquals(cached.body(), "");
+        cached = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/style.css"))
+                .header("If-Modified-Since", modified).build(), BodyHandlers.ofString());
+        assertEquals(cached.statusCode(), 304);
+
+        HttpResponse<byte[]> video = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/video.mp4"))
+                .build(), BodyHandlers.ofByteArray());
+        assertEquals(video.headers().firstValue("Content-Type").get(), "video/mp4");
+        assertTrue(Arrays.equals(video.body(), large));
+        assertEquals(client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/docs/"))
+                .build(), BodyHandlers.ofString()).body(), "<h1>docs</h1>");
+
+        HttpResponse<byte[]> tail = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9986/static/huge.bin"))
+                .header("Range", "bytes=3000000000-3000000009").build(), BodyHandlers.ofByteArray());
+        assertEquals(tail.statusCode(), 206);
+        assertEquals(tail.headers().firstValue("Content-Range").get(), "bytes 3000000000-3000000009/" + huge);
+        assertTrue(Arrays.equals(tail.body(), new byte[10]));
+        try (Socket socket = new Socket("127.0.0.1", 9986)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /static/huge.bin HTTP/1.1\r\n\r\n".getBytes());
+            byte[] head = new byte[1024];
+            Integer read = socket.getInputStream().read(head);
+            String response = new String(head, 0, read);
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.contains("Content-Length: " + huge + "\r\n"));
+        }
+
+        for (String path : new String[] { "/static/../outside.txt", "/static/%2e%2e/outside.txt",
+                "/static/docs/..%2f..%2foutside.txt", "/static/link.txt", "/static/escape/", "/static/.secret", "/static/missing" }) {
+            try (Socket socket = new Socket("127.0.0.1", 9986)) {
+                socket.setSoTimeout(5000);
+                OutputStream output = socket.getOutputStream();
+                output.write(("GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+                output.flush();
+                assertTrue(path, new String(socket.getInputStream().readAllBytes()).startsWith("HTTP/1.1 404"));
+            }
+        }
+        server.close();
+    }
+
+    /**
+     * Range requests of file and byte responses are answered with parts of body.
+     */
+    @org.junit.Test
+    public void testRangeRequests() throws IOException, InterruptedException {
+        assertTrue(Arrays.equals(Ranges.parse("bytes=0-9, 20-, -5", 100), new long[] { 0, 9, 20, 99, 95, 99 }));
+        assertEquals(Ranges.parse("bytes=200-300", 100).length, 0);
+        assertNull(Ranges.parse("bytes=9-0", 100));
+        assertNull(Ranges.parse("lines=1-2", 100));
+
+        Path root = Files.createTempDirectory("webtoy-ranges");
+        byte[] data = new byte[200 * 1024];
+        for (Integer index = 0; index < data.length; index++)
+            data[index] = (byte) (index * 7);
+        Files.write(root.resolve("large.bin"), data);
+        Files.write(root.resolve("small.bin"), Arrays.copyOf(data, 1000));
+        Application app = new Application();
+        app.route("/files/*", new StaticFiles(root));
+        app.route("/bytes", request -> {
+            Response response = new Response(200, Arrays.copyOf(data, 1000));
+            response.headers.put("Content-Type", "application/octet-stream");
+            return response;
+        });
+        // Body whose position is not 0, ranges count from its position
+        app.route("/offset", request -> {
+            ByteBuffer body = ByteBuffer.allocate(1100);
+            body.put(new byte[50]).put(data, 0, 1000).put(new byte[50]);
+            Response response = new Response(200, body.flip().position(50).limit(1050));
+            response.headers.put("Content-Type", "application/octet-stream");
+            return response;
+        });
+        Server server = new Server("localhost", 9985, app);
+        server.accessLog(null);
+        new Thread(server::start).start();
+
+        HttpClient client = HttpClient.newHttpClient();
+        for (String path : new String[] { "/files/large.bin", "/files/small.bin", "/bytes", "/offset" }) {
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9985" + path))
+                    .header("Range", "bytes=100-199").build(), BodyHandlers.ofByteArray());
+            assertEquals(response.statusCode(), 206);
+            assertTrue(path, Arrays.equals(response.body(), Arrays.copyOfRange(data, 100, 200)));
+            String length = path.equals("/files/large.bin") ? "204800" : "1000";
+            assertEquals(response.headers().firstValue("Content-Range").get(), "bytes 100-199/" + length);
+
+            response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9985" + path))
+                    .header("Range", "bytes=0-1,-2").build(), BodyHandlers.ofByteArray());
+            assertEquals(response.statusCode(), 206);
+            String type = response.headers().firstValue("Content-Type").get();
+            assertTrue(type.startsWith("multipart/byteranges; boundary="));
+            String boundary = type.substring(type.indexOf('=') + 1);
+            Integer size = Integer.valueOf(length);
+            String expected = "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-1/"
+                    + length + "\r\n\r\n" + new String(Arrays.copyOfRange(data, 0, 2), StandardCharsets.ISO_8859_1)
+                    + "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes "
+                    + (size - 2) + "-" + (size - 1) + "/" + length + "\r\n\r\n"
+                    + new String(Arrays.copyOfRange(data, size - 2, size), StandardCharsets.ISO_8859_1)
+                    + "\r\n--" + boundary + "--\r\n";
+            assertEquals(new String(response.body(), StandardCharsets.ISO_8859_1), expected);
+
+            response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9985" + path))
+                    .header("Range", "bytes=5000000-").build(), BodyHandlers.ofByteArray());
+            assertEquals(response.statusCode(), 416);
+            assertEquals(response.headers().firstValue("Content-Range").get(), "bytes */" + length);
+        }
+
+        // Changed file is sent whole
+        HttpResponse<byte[]> whole = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9985/files/large.bin"))
+                .header("Range", "bytes=0-9").header("If-Range", "\"stale\"").build(), BodyHandlers.ofByteArray());
+        assertEquals(whole.statusCode(), 200);
+        assertEquals(whole.body().length, data.length);
+        String etag = whole.headers().firstValue("ETag").get();
+        HttpResponse<byte[]> partial = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9985/files/large.bin"))
+                .header("Range", "bytes=0-9").header("If-Range", etag).build(), BodyHandlers.ofByteArray());
+        assertEquals(partial.statusCode(), 206);
+        assertEquals(partial.body().length, 10);
+        server.close();
+    }
+
+    /**
+     * Connections are closed by timeouts of what they wait for, and over connection limits.
+     */
+    @org.junit.Test
+    public void testTimeoutsAndLimits() throws IOException, InterruptedException {
+        Duration header = Server.HeaderTimeout;
+        Duration idle = Server.IdleTimeout;
+        Integer perAddress = Server.MaxConnectionsPerAddress;
+        Server.IdleTimeout = Duration.ofMillis(300);
+        Server.MaxConnectionsPerAddress = 2;
+        Application app = new Application();
+        app.route("/", request -> new Response("hello"));
+        Server server = new Server("localhost", 9984, app);
+        server.accessLog(null);
+        new Thread(server::start).start();
+        try {
+            // Kept-alive connection is closed once idle for too long
+            try (Socket socket = new Socket("127.0.0.1", 9984)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+                String response = new String(socket.getInputStream().readAllBytes());
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            }
+            assertEquals(server.metrics.timeouts(Server.Timeout.IDLE), 1);
+
+            // Client sending part of a header is answered with 408
+            Server.HeaderTimeout = Duration.ofMillis(300);
+            try (Socket socket = new Socket("127.0.0.1", 9984)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: loc".getBytes());
+                long started = System.nanoTime();
+                String response = new String(socket.getInputStream().readAllBytes());
+                assertTrue(response.startsWith("HTTP/1.1 408"));
+                assertTrue(System.nanoTime() - started < Duration.ofSeconds(2).toNanos());
+            }
+            assertEquals(server.metrics.timeouts(Server.Timeout.HEADER), 1);
+
+            // Third connection from same address is closed at once
+            try (Socket first = new Socket("127.0.0.1", 9984);
+                    Socket second = new Socket("127.0.0.1", 9984);
+                    Socket third = new Socket("127.0.0.1", 9984)) {
+                third.setSoTimeout(1000);
+                assertEquals(third.getInputStream().read(), -1);
+                assertEquals(server.metrics.rejected(Server.Limit.ADDRESS), 1);
+                first.setSoTimeout(5000);
+                first.getOutputStream().write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+                assertTrue(new String(first.getInputStream().readAllBytes()).startsWith("HTTP/1.1 200 OK"));
+            }
+            assertTrue(server.metrics.prometheus().contains("webtoy_connections_rejected_total{limit=\"address\"} 1"));
+        } finally {
+            server.close();
+            Server.HeaderTimeout = header;
+            Server.IdleTimeout = idle;
+            Server.MaxConnectionsPerAddress = perAddress;
+        }
+    }
+
+    @org.junit.Test
+    public void testAdmission() throws IOException, InterruptedException {
+        // Requests beyond limit are shed, limit adapts to latency
+        InetAddress local = InetAddress.getLoopbackAddress();
+        Admission admission = new Admission().limit(2, 1, 4).target(Duration.ofSeconds(1));
+        assertNull(admission.admit(local));
+        assertNull(admission.admit(local));
+        Response shed = admission.admit(local);
+        assertEquals(shed.code, Integer.valueOf(503));
+        assertEquals(shed.headers.get("Retry-After"), "1");
+        assertEquals(admission.shed(), 1);
+        admission.release(Duration.ofSeconds(2).toNanos());
+        assertEquals(admission.limit(), 1.8, 1e-9);
+        admission.release(Duration.ofSeconds(2).toNanos());
+        assertEquals(admission.limit(), 1.8, 1e-9);
+        assertEquals(admission.inFlight(), Integer.valueOf(0));
+        assertNull(admission.admit(local));
+        admission.release(0);
+        assertEquals(admission.limit(), 1.8 + 1 / 1.8, 1e-9);
+
+        // Burst defaults to rate of a second, invalid rates are refused
+        Admission defaults = new Admission().rate(5.0, null);
+        for (Integer index = 0; index < 5; index++)
+            assertNull(defaults.admit(InetAddress.getLoopbackAddress()));
+        assertEquals(defaults.admit(InetAddress.getLoopbackAddress()).code, Integer.valueOf(429));
+        try {
+            new Admission().rate(0.0, 1);
+            fail("invalid rate");
+        } catch (IllegalArgumentException error) {
+            assertTrue(error.getMessage().contains("rate"));
+        }
+
+        // Client over its rate is answered with 429 without calling handler
+        AtomicInteger handled = new AtomicInteger();
+        Application app = new Application();
+        app.route("/", request -> {
+            handled.incrementAndGet();
+            return new Response("hello");
+        });
+        Server server = new Server("localhost", 9983, app);
+        server.accessLog(null);
+        server.admission(new Admission().rate(0.5, 2));
+        new Thread(server::start).start();
+        try (Socket socket = new Socket("127.0.0.1", 9983)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET / HTTP/1.1\r\n\r\n".repeat(2)
+                    + "GET / HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            String response = new String(socket.getInputStream().readAllBytes());
+            String[] responses = response.split("(?=HTTP/1.1 )");
+            assertEquals(responses.length, 3);
+            assertTrue(responses[0].startsWith("HTTP/1.1 200 OK"));
+            assertTrue(responses[1].startsWith("HTTP/1.1 200 OK"));
+            assertTrue(responses[2].startsWith("HTTP/1.1 429"));
+            assertTrue(responses[2].contains("Retry-After: 2\r\n"));
+            assertTrue(responses[2].contains("Connection: close\r\n"));
+            assertEquals(handled.get(), 2);
+        } finally {
+            server.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testStreamingRequestBodies() throws IOException, InterruptedException {
+        byte[] data = new byte[2 * 1024 * 1024 + 7];
+        for (Integer index = 0; index < data.length; index++)
+            data[index] = (byte) (index * 31 + index / 7);
+        Application app = new Application();
+        app.route("/upload", HTTPMethod.POST, request -> {
+            try {
+                byte[] received = request.stream.inputStream().readAllBytes();
+                return new Response(Arrays.equals(received, data) ? "same" : "different");
+            } catch (IOException error) {
+                return new Response(500);
+            }
+        }).stream();
+        app.route("/spill", HTTPMethod.POST, request -> {
+            try (InputStream input = java.nio.channels.Channels.newInputStream(request.stream.channel())) {
+                byte[] received = input.readAllBytes();
+                return new Response(request.body == null && Arrays.equals(received, data) ? "same" : "different");
+            } catch (IOException error) {
+                return new Response(500);
+            }
+        }).spill(4096).maxBodySize(4 * 1024 * 1024);
+        app.routeAsync("/publish", HTTPMethod.POST, request -> {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            java.io.ByteArrayOutputStream received = new java.io.ByteArrayOutputStream();
+            request.stream.publisher().subscribe(new java.util.concurrent.Flow.Subscriber<ByteBuffer>() {
+                private java.util.concurrent.Flow.Subscription subscription;
+
+                public void onSubscribe(java.util.concurrent.Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                public void onNext(ByteBuffer chunk) {
+                    byte[] bytes = new byte[chunk.remaining()];
+                    chunk.get(bytes);
+                    received.writeBytes(bytes);
+                    this.subscription.request(1);
+                }
+
+                public void onError(Throwable error) {
+                    future.complete(new Response(500));
+                }
+
+                public void onComplete() {
+                    future.complete(new Response(Arrays.equals(received.toByteArray(), data) ? "same" : "different"));
+                }
+            });
+            return future;
+        }).stream();
+        app.route("/ignore", HTTPMethod.POST, request -> new Response("ignored")).stream();
+        app.route("/blocking", HTTPMethod.POST, request -> {
+            try {
+                request.stream.inputStream().readAllBytes();
+                return new Response("read");
+            } catch (IOException error) {
+                return new Response(500);
+            }
+        }).stream().inline();
+        app.route("/small", HTTPMethod.POST, request -> new Response("small")).maxBodySize(1000);
+        app.route("/", request -> new Response("hello"));
+        Server server = new Server("localhost", 9982, app);
+        server.accessLog(null);
+        new Thread(server::start).start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            for (String path : new String[] { "/upload", "/spill", "/publish" }) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                        .uri(URI.create("http://localhost:9982" + path))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(data)).build(), BodyHandlers.ofString());
+                assertEquals(path, response.body(), "same");
+            }
+            HttpResponse<String> large = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:9982/small"))
+                    .POST(HttpRequest.BodyPublishers.ofString("x".repeat(1001))).build(), BodyHandlers.ofString());
+            assertEquals(large.statusCode(), 413);
+
+            // Inline handler reading body before it arrived fails instead of blocking reactor
+            try (Socket socket = new Socket("127.0.0.1", 9982)) {
+                socket.setSoTimeout(5000);
+                OutputStream output = socket.getOutputStream();
+                output.write("POST /blocking HTTP/1.1\r\nContent-Length: 10\r\n\r\n".getBytes());
+                output.flush();
+                Thread.sleep(100);
+                output.write("0123456789GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+                String response = new String(socket.getInputStream().readAllBytes());
+                assertTrue(response.startsWith("HTTP/1.1 500"));
+            }
+
+            // Body not read by handler is dropped, and next request on connection is served
+            try (Socket socket = new Socket("127.0.0.1", 9982)) {
+                socket.setSoTimeout(5000);
+                OutputStream output = socket.getOutputStream();
+                output.write("POST /ignore HTTP/1.1\r\nContent-Length: 1000000\r\n\r\n".getBytes());
+                output.write(new byte[1000000]);
+                output.write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+                String response = new String(socket.getInputStream().readAllBytes());
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+                assertTrue(response.contains("ignored"));
+                assertTrue(response.endsWith("hello"));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @org.junit.Test
+    public void testStreamingResponses() throws IOException, InterruptedException {
+        Application app = new Application();
+        app.route("/lines", request -> Response.stream(200, output -> {
+            for (Integer index = 0; index < 1000; index++)
+                output.write(String.format("line %d\n", index).getBytes());
+        }));
+        app.route("/publish", request -> new Response(200, HttpRequest.BodyPublishers.ofString("published")));
+        app.route("/large", request -> Response.stream(200, output -> {
+            byte[] block = new byte[1000];
+            for (Integer index = 0; index < 8000; index++) {
+                Arrays.fill(block, (byte) ('a' + index % 26));
+                output.write(block);
+            }
+        }));
+        app.route("/broken", request -> Response.stream(200, output -> {
+            output.write("partial".getBytes());
+            output.flush();
+            throw new IOException("broken");
+        }));
+        app.route("/", request -> new Response("hello"));
+        Server server = new Server("localhost", 9981, app);
+        server.accessLog(null);
+        new Thread(server::start).start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpResponse<String> lines = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:9981/lines")).build(), BodyHandlers.ofString());
+            assertEquals(lines.headers().firstValue("Transfer-Encoding").orElse(null), "chunked");
+            assertFalse(lines.headers().firstValue("Content-Length").isPresent());
+            assertEquals(lines.body().split("\n").length, 1000);
+            assertTrue(lines.body().endsWith("line 999\n"));
+            HttpResponse<String> published = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:9981/publish")).build(), BodyHandlers.ofString());
+            assertEquals(published.body(), "published");
+
+            // Client reading slowly holds writer back, pipelined request is answered after body ends
+            try (Socket socket = new Socket("127.0.0.1", 9981)) {
+                socket.setSoTimeout(5000);
+                socket.setReceiveBufferSize(16 * 1024);
+                socket.getOutputStream().write(("GET /large HTTP/1.1\r\n\r\n"
+                        + "GET / HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+                Thread.sleep(500);
+                InputStream input = new java.io.BufferedInputStream(socket.getInputStream());
+                String head = readLine(input);
+                assertEquals(head, "HTTP/1.1 200 OK");
+                while (!readLine(input).isEmpty())
+                    continue;
+                java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+                Integer size;
+                while ((size = Integer.parseInt(readLine(input), 16)) > 0) {
+                    body.writeBytes(input.readNBytes(size));
+                    assertEquals(readLine(input), "");
+                }
+                assertEquals(readLine(input), "");
+                byte[] received = body.toByteArray();
+                assertEquals(received.length, 8000000);
+                assertEquals(received[0], (byte) 'a');
+                assertEquals(received[received.length - 1], (byte) ('a' + 7999 % 26));
+                String rest = new String(input.readAllBytes());
+                assertTrue(rest.startsWith("HTTP/1.1 200 OK"));
+                assertTrue(rest.endsWith("hello"));
+            }
+
+            // Failed writer closes connection before last chunk
+            try (Socket socket = new Socket("127.0.0.1", 9981)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET /broken HTTP/1.1\r\n\r\n".getBytes());
+                String response = new String(socket.getInputStream().readAllBytes());
+                assertTrue(response.contains("7\r\npartial\r\n"));
+                assertFalse(response.endsWith("0\r\n\r\n"));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        Integer value;
+        while ((value = input.read()) != -1 && value != '\n')
+            if (value != '\r')
+                line.append((char) value.intValue());
+        return line.toString();
+    }
+}